@@ -36,6 +36,9 @@ public class DumbEngine implements JChessEngine {
 		log = bufferedWriter;
 	}
 	
+	public void bench(int depth) {
+	}
+
 	public void black() {
 	}
 
@@ -59,6 +62,9 @@ public class DumbEngine implements JChessEngine {
 		}
 	}
 
+	public void divide(int depth) {
+	}
+
 	public void force() {
 	}
 
@@ -94,6 +100,12 @@ public class DumbEngine implements JChessEngine {
 	public void setBoard(String fen) {
 	}
 
+	public void setCores(int cores) {
+	}
+
+	public void setMemory(int megabytes) {
+	}
+
 	public void setDebug(boolean debug) {
 		this.debug = debug;
 	}
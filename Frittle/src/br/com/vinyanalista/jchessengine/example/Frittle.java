@@ -1,8 +1,13 @@
 package br.com.vinyanalista.jchessengine.example;
 
+import java.io.File;
+import java.io.IOException;
+
 import br.com.vinyanalista.jchessengine.*;
 import net.sourceforge.frittle.*;
 import net.sourceforge.frittle.ai.AI;
+import net.sourceforge.frittle.ai.Benchmark;
+import net.sourceforge.frittle.ai.EpdRunner;
 
 public class Frittle implements JChessEngine {
 	/** The current version **/
@@ -17,6 +22,12 @@ public class Frittle implements JChessEngine {
 	/** Debug mode flag. True if debugMode mode is on */
     private boolean debugMode;
     
+    /** The cache of subtree counts used by perft, or null not to use one */
+    private PerftCache perftCache;
+    
+    /** Whether perft counts the last ply without making its moves */
+    private boolean perftBulkCounting;
+    
     public Frittle() {
     	debugMode = true; // TODO Verificar
     	// Create new game and restart AI engine
@@ -25,6 +36,14 @@ public class Frittle implements JChessEngine {
 		debugMode = false; // TODO Verificar
 	}
 	
+	public void bench(int depth) {
+		ai.destroyThreads();
+		try {
+			Benchmark.bench(ai, depth);
+		} catch (InterruptedException e) {
+		}
+	}
+
 	public void black() {
 	}
 
@@ -36,6 +55,13 @@ public class Frittle implements JChessEngine {
 			XBoard.send("# " + message);
 	}
 
+	public void divide(int depth) {
+		Perft p = new Perft(game.getCurrentState());
+		p.setCache(perftCache);
+		p.setBulkCounting(perftBulkCounting);
+		p.test(depth, ai.getCores(), true);
+	}
+
 	public void force() {
 		debug("Frittle is inactive");
         ai.destroyThreads();
@@ -102,7 +128,9 @@ public class Frittle implements JChessEngine {
 	
 	public void performanceTest(int depth) {
 		Perft p = new Perft(game.getCurrentState());
-		p.test(depth);
+		p.setCache(perftCache);
+		p.setBulkCounting(perftBulkCounting);
+		p.test(depth, ai.getCores(), false);
 	}
 
 	public void quit() {
@@ -135,6 +163,15 @@ public class Frittle implements JChessEngine {
         }
 	}
 	
+	public void setCores(int cores) {
+		ai.setCores(cores);
+		debug("Using " + ai.getCores() + " cores");
+	}
+	
+	public void setMemory(int megabytes) {
+		ai.setMemory(megabytes);
+	}
+	
 	public void setSearchDepth(int depth) {
         ai.searchDepth = depth;
         debug("OK");
@@ -153,7 +190,10 @@ public class Frittle implements JChessEngine {
 	}
 
 	public void setProtocolVersion(int protocolVersion) {
-		XBoard.feature("myname=\"Frittle " + VERSION + "\" setboard=1 analyze=0 variants=\"normal\" colors=0 debug=1 done=1");
+		XBoard.feature("myname=\"Frittle " + VERSION + "\" setboard=1 analyze=0 variants=\"normal\" colors=0 debug=1 smp=1 memory=1"
+				+ " option=\"Futility Margin -spin " + ai.futilityMargin + " 0 1000\""
+				+ " option=\"Reverse Futility Margin -spin " + ai.reverseFutilityMargin + " 0 1000\""
+				+ " option=\"Razor Margin -spin " + ai.razorMargin + " 0 1000\" done=1");
 	}
 
 	public void setShowThinking(boolean showThinking) {
@@ -185,8 +225,61 @@ public class Frittle implements JChessEngine {
 	}
 	
 	public void unrecognizedCommand(String input) {
+		// Commands of this engine that are not part of the protocol
+		try {
+			if (input.startsWith("savehash ")) {
+				ai.saveHashtable(new File(input.substring(9).trim()));
+				return;
+			} else if (input.startsWith("loadhash ")) {
+				ai.loadHashtable(new File(input.substring(9).trim()));
+				return;
+			} else if (input.startsWith("perfthash ")) {
+				// Size of the perft cache in MB, or 0 not to use one
+				int megabytes = Integer.parseInt(input.substring(10).trim());
+				perftCache = (megabytes > 0) ? new PerftCache(megabytes) : null;
+				debug("Perft cache " + (megabytes > 0 ? perftCache.getMegabytes() + "MB" : "off"));
+				return;
+			} else if (input.startsWith("perftmode ")) {
+				// "fast" only counts the leaf nodes, "detailed" collects all the statistics
+				perftBulkCounting = input.substring(10).trim().equals("fast");
+				debug("Perft mode " + (perftBulkCounting ? "fast" : "detailed"));
+				return;
+			} else if (input.startsWith("option ")) {
+				// The value of an option of the features, as "option NAME=VALUE"
+				int equals = input.indexOf('=');
+				if (equals > 0)
+					setOption(input.substring(7, equals).trim(), Integer.parseInt(input.substring(equals+1).trim()));
+				return;
+			}
+		} catch (IOException e) {
+			XBoard.tellUserError(e.getMessage());
+			return;
+		} catch (NumberFormatException e) {
+			XBoard.tellUserError(e.getMessage());
+			return;
+		}
 		// Do nothing if erroneous command was made in XBoard mode
 	}
+	
+	/**
+	 * Sets one of the options announced in the features.
+	 *
+	 * @param name		the name of the option
+	 * @param value		the new value of the option
+	 */
+	private void setOption(String name, int value) {
+		if (name.equals("Futility Margin"))
+			ai.futilityMargin = value;
+		else if (name.equals("Reverse Futility Margin"))
+			ai.reverseFutilityMargin = value;
+		else if (name.equals("Razor Margin"))
+			ai.razorMargin = value;
+		else {
+			XBoard.tellUserError("Unknown option " + name);
+			return;
+		}
+		debug(name + " " + value);
+	}
 
 	public void white() {
 	}
@@ -203,12 +296,70 @@ public class Frittle implements JChessEngine {
 		engine.setDebug(true);
 		
 		// Parse arguments
+		String epdFile = null;
+		int epdDepth = engine.getAI().searchDepth;
+		long epdTime = 5000;
+		int epdThreads = Runtime.getRuntime().availableProcessors();
         for(int i=0; i < args.length; i++)
         {
             if(args[i].equals("-debug"))
             {
                 engine.setDebug(true);
             }
+            else if(args[i].equals("-verifyhash"))
+            {
+                GameState.setHashVerification(true);
+            }
+            else if(args[i].equals("-loadhash") && i+1 < args.length)
+            {
+                // Start with the hashtable saved by a previous run
+                engine.unrecognizedCommand("loadhash " + args[++i]);
+            }
+            else if(args[i].equals("-epd") && i+1 < args.length)
+            {
+                epdFile = args[++i];
+            }
+            else if(args[i].equals("-epddepth") && i+1 < args.length)
+            {
+                epdDepth = Integer.parseInt(args[++i]);
+            }
+            else if(args[i].equals("-epdtime") && i+1 < args.length)
+            {
+                epdTime = Long.parseLong(args[++i]);
+            }
+            else if(args[i].equals("-epdthreads") && i+1 < args.length)
+            {
+                epdThreads = Integer.parseInt(args[++i]);
+            }
+            else if(args[i].equals("-bench"))
+            {
+                // Search the benchmark positions, then exit
+                int depth = 0;
+                if(i+1 < args.length && args[i+1].matches("\\d+"))
+                    depth = Integer.parseInt(args[++i]);
+                engine.bench(depth);
+                return;
+            }
+            else if(args[i].equals("-smpbench") && i+1 < args.length)
+            {
+                // Measure the time to depth with each number of threads, then exit
+                try {
+                    Benchmark.timeToDepth(engine.getAI(), Integer.parseInt(args[++i]));
+                } catch (InterruptedException e) {
+                }
+                return;
+            }
+        }
+        if(epdFile != null)
+        {
+            // Run the test suite, then exit
+            try {
+                EpdRunner.run(engine, new File(epdFile), epdDepth, epdTime, epdThreads);
+            } catch (IOException e) {
+                XBoard.tellUserError(e.getMessage());
+            } catch (InterruptedException e) {
+            }
+            return;
         }
         // Welcome message
         XBoard.send("Welcome to Frittle " + VERSION);
@@ -0,0 +1,195 @@
+/*
+Frittle - Chess Engine for WinBoard/XBoard [http://frittle.sourceforge.net]
+Copyright (C) 2009 Rohan Padhye <verminox@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package net.sourceforge.frittle;
+
+/**
+ * This class provides static attack tables and helper methods for working
+ * with bitboards. A bitboard is a 64-bit <code>long</code> where bit <i>i</i>
+ * stands for the square with index <i>i</i> in the <code>board[]</code> array
+ * (therefore a8 is bit 0 and h1 is bit 63).
+ *
+ * The tables are built once from the move arrays in {@link Moves}, so both
+ * representations always agree on the geometry of the board.
+ */
+public class Bitboard
+{
+    /**
+     * Privatize constructor to avoid creating objects of this class
+     */
+    private Bitboard(){}
+
+    /** Squares attacked by a knight standing on the indexed square */
+    public static final long[] knight = new long[64];
+    /** Squares attacked by a king standing on the indexed square */
+    public static final long[] king = new long[64];
+    /**
+     * Squares attacked by a pawn standing on the indexed square.
+     * Should be accessed like [Player][Position]
+     */
+    public static final long[][] pawnAttacks = new long[2][64];
+    /**
+     * Every square along a ray, starting next to the indexed square and up to
+     * the edge of the board. Should be accessed like [Direction][Position]
+     * where the directions are in the same order as <code>Moves.queen</code>.
+     */
+    public static final long[][] ray = new long[8][64];
+    /** Whether the squares of the ray have increasing indexes */
+    private static final boolean[] positive = new boolean[8];
+    /**
+     * The squares strictly between two squares on the same rank, file or
+     * diagonal, or an empty bitboard if they are not aligned.
+     * Should be accessed like [Position][Position]
+     */
+    public static final long[][] between = new long[64][64];
+    /**
+     * The direction (index into <code>ray[]</code>) in which the second
+     * square lies as seen from the first, or -1 if they are not aligned.
+     * Should be accessed like [Position][Position]
+     */
+    public static final byte[][] direction = new byte[64][64];
+    /** Indexes of the straight directions in <code>ray[]</code> */
+    private static final int[] straights = { 0, 1, 2, 3 };
+    /** Indexes of the diagonal directions in <code>ray[]</code> */
+    private static final int[] diagonals = { 4, 5, 6, 7 };
+
+    // Initialize attack tables
+    static
+    {
+        for(int s=0; s<64; s++)
+        {
+            knight[s] = toBitboard(Moves.knight[s]);
+            king[s] = toBitboard(Moves.king[s]);
+            pawnAttacks[0][s] = toBitboard(Moves.pawnWX[s]);
+            pawnAttacks[1][s] = toBitboard(Moves.pawnBX[s]);
+            for(int dir=0; dir<8; dir++)
+            {
+                ray[dir][s] = toBitboard(Moves.queen[dir][s]);
+                if(Moves.queen[dir][s].length > 0)
+                    positive[dir] = Moves.queen[dir][s][0] > s;
+            }
+        }
+        for(int s=0; s<64; s++)
+        {
+            for(int d=0; d<64; d++)
+                direction[s][d] = -1;
+            for(int dir=0; dir<8; dir++)
+            {
+                long squares = 0;
+                for(byte d : Moves.queen[dir][s])
+                {
+                    direction[s][d] = (byte)dir;
+                    between[s][d] = squares;
+                    squares |= 1L << d;
+                }
+            }
+        }
+    }
+
+    /**
+     * Converts a list of squares into a bitboard
+     *
+     * @param   squares     the array indexes of the squares
+     * @return  a bitboard with the bits of the given squares set
+     */
+    public static long toBitboard(byte[] squares)
+    {
+        long bb = 0;
+        for(byte s : squares)
+            bb |= 1L << s;
+        return bb;
+    }
+
+    /**
+     * Finds the squares attacked along one ray. The first piece met along the
+     * ray (of any color) is included in the attack set, and the squares
+     * behind it are not.
+     *
+     * @param   dir         the direction (index into <code>ray[]</code>)
+     * @param   sq          the square of the sliding piece
+     * @param   occupied    the bitboard of all occupied squares
+     * @return  the bitboard of attacked squares
+     */
+    public static long rayAttacks(int dir, int sq, long occupied)
+    {
+        long attacks = ray[dir][sq];
+        long blockers = attacks & occupied;
+        if(blockers != 0)
+        {
+            int blocker = positive[dir] ? Long.numberOfTrailingZeros(blockers)
+                    : 63 - Long.numberOfLeadingZeros(blockers);
+            attacks ^= ray[dir][blocker];
+        }
+        return attacks;
+    }
+
+    /**
+     * Squares attacked by a bishop (or by a queen along diagonals)
+     *
+     * @param   sq          the square of the bishop
+     * @param   occupied    the bitboard of all occupied squares
+     * @return  the bitboard of attacked squares
+     */
+    public static long bishopAttacks(int sq, long occupied)
+    {
+        long attacks = 0;
+        for(int dir : diagonals)
+            attacks |= rayAttacks(dir, sq, occupied);
+        return attacks;
+    }
+
+    /**
+     * Squares attacked by a rook (or by a queen along ranks and files)
+     *
+     * @param   sq          the square of the rook
+     * @param   occupied    the bitboard of all occupied squares
+     * @return  the bitboard of attacked squares
+     */
+    public static long rookAttacks(int sq, long occupied)
+    {
+        long attacks = 0;
+        for(int dir : straights)
+            attacks |= rayAttacks(dir, sq, occupied);
+        return attacks;
+    }
+
+    /**
+     * Squares attacked by a queen
+     *
+     * @param   sq          the square of the queen
+     * @param   occupied    the bitboard of all occupied squares
+     * @return  the bitboard of attacked squares
+     */
+    public static long queenAttacks(int sq, long occupied)
+    {
+        return bishopAttacks(sq, occupied) | rookAttacks(sq, occupied);
+    }
+
+    /**
+     * Gets the square of the least significant bit of the bitboard. Used
+     * together with <code>bb &= bb-1</code> to loop over the squares of a
+     * bitboard.
+     *
+     * @param   bb      a non-empty bitboard
+     * @return  the array index of the first set square [0-63]
+     */
+    public static int firstSquare(long bb)
+    {
+        return Long.numberOfTrailingZeros(bb);
+    }
+}
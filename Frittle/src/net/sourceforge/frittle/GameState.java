@@ -21,17 +21,23 @@ package net.sourceforge.frittle;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
+import net.sourceforge.frittle.ai.Eval;
+
 /**
  * This is the state of the chess game at any point in the game.
  * The GameState contains the following information about the game:
  * <ul>
- * <li>Position of each piece on the board (with color)</li>
+ * <li>Position of each piece on the board (with color), both as an array of
+ * squares and as bitboards</li>
  * <li>Active player (WHITE or BLACK)</li>
  * <li>Whether active player is in check</li>
  * <li>Whether each player is allowed to castle kingside/queenside</li>
  * <li>En Passant square, if any</li>
  * <li>Halfmove clock (No. of plys since the last pawn move or capture)</li>
  * <li>Move number</li>
+ * <li>Zobrist hash of the position and of the pawns alone (updated incrementally)</li>
+ * <li>Material, piece-square scores and piece counts of each player
+ * (updated incrementally for the evaluation)</li>
  * <li>Evaulation object (used only by AI)</li>
  * </ul>
  */
@@ -39,6 +45,20 @@ public class GameState
 {
     /** A 64-array of squares on the board and the piece which is on the square */
 	private Piece[] board;
+    /** Bitboards of the pieces of each type, accessed like [Player][PieceType] */
+    private long[][] pieces;
+    /** Bitboards of the squares occupied by each player, accessed like [Player] */
+    private long[] occupancy;
+    /** Bitboard of all occupied squares */
+    private long occupied;
+    /** Sum of the values of the pieces of each player, accessed like [Player] */
+    private int[] material;
+    /** Sum of the middlegame piece-square scores of each player, accessed like [Player] */
+    private int[] positional;
+    /** Sum of the endgame piece-square scores of each player, accessed like [Player] */
+    private int[] endgamePositional;
+    /** Number of pieces of each type, accessed like [Player][PieceType] */
+    private int[][] pieceCount;
     /** The side to move */
     private Player activePlayer;
     /** Castling rights */
@@ -52,6 +72,45 @@ public class GameState
     private byte whiteKing;
     /** The location of the black king */
     private byte blackKing;
+    /** The Zobrist hash of the state, updated by doMove() and undoMove() */
+    private long hash;
+    /** The Zobrist hash of the pawns only, used to cache the pawn structure evaluation */
+    private long pawnHash;
+    /** Pieces of the active player that are pinned to their king */
+    private long pinned;
+    /** Enemy pieces that give check to the king of the active player */
+    private long checkers;
+    /** Whether <code>pinned</code> and <code>checkers</code> have been computed */
+    private boolean pinsKnown;
+    /** The hash of the position for which they were computed */
+    private long pinsHash;
+    /** Castling rights before each packed move made by doMove(int), as in castleRights() */
+    private byte[] undoCastleRights = new byte[64];
+    /** En passant square before each packed move made by doMove(int) */
+    private byte[] undoEnPassant = new byte[64];
+    /** Hash before each packed move made by doMove(int) */
+    private long[] undoHash = new long[64];
+    /** Number of packed moves made by doMove(int) that have not been undone */
+    private int undoCount;
+    /** The speculative gains of each capture of the exchange evaluated by see() */
+    private int[] seeGain = new int[33];
+    /** The castles found by toPseudoLegalMove() */
+    private int[] castleMoves = new int[2];
+
+    /**
+     * Upper bound on the number of pseudo-legal moves in any position, i.e.
+     * the room that generatePseudoLegalMoves(int[], int) needs in its array
+     */
+    public static final int MAX_MOVES = 256;
+
+    /** The ordinal of PieceType.PAWN, to test for pawns in the piece helpers */
+    private static final int PAWN = PieceType.PAWN.ordinal();
+
+    /**
+     * Whether doMove() and undoMove() should verify the incrementally
+     * updated hash against a full recomputation (slow, for debugging only)
+     */
+    private static boolean verifyHash = false;
 
 
     /**
@@ -77,14 +136,14 @@ public class GameState
 	{
 		// The default board
 		Piece[] defaultBoard = {
-			new Piece(PieceType.ROOK, Player.BLACK), new Piece(PieceType.KNIGHT, Player.BLACK), new Piece(PieceType.BISHOP, Player.BLACK), new Piece(PieceType.QUEEN, Player.BLACK), new Piece(PieceType.KING, Player.BLACK), new Piece(PieceType.BISHOP, Player.BLACK), new Piece(PieceType.KNIGHT, Player.BLACK), new Piece(PieceType.ROOK, Player.BLACK),
-			new Piece(PieceType.PAWN, Player.BLACK), new Piece(PieceType.PAWN, Player.BLACK), new Piece(PieceType.PAWN, Player.BLACK), new Piece(PieceType.PAWN, Player.BLACK), new Piece(PieceType.PAWN, Player.BLACK), new Piece(PieceType.PAWN, Player.BLACK), new Piece(PieceType.PAWN, Player.BLACK), new Piece(PieceType.PAWN, Player.BLACK),
+			Piece.valueOf(PieceType.ROOK, Player.BLACK), Piece.valueOf(PieceType.KNIGHT, Player.BLACK), Piece.valueOf(PieceType.BISHOP, Player.BLACK), Piece.valueOf(PieceType.QUEEN, Player.BLACK), Piece.valueOf(PieceType.KING, Player.BLACK), Piece.valueOf(PieceType.BISHOP, Player.BLACK), Piece.valueOf(PieceType.KNIGHT, Player.BLACK), Piece.valueOf(PieceType.ROOK, Player.BLACK),
+			Piece.valueOf(PieceType.PAWN, Player.BLACK), Piece.valueOf(PieceType.PAWN, Player.BLACK), Piece.valueOf(PieceType.PAWN, Player.BLACK), Piece.valueOf(PieceType.PAWN, Player.BLACK), Piece.valueOf(PieceType.PAWN, Player.BLACK), Piece.valueOf(PieceType.PAWN, Player.BLACK), Piece.valueOf(PieceType.PAWN, Player.BLACK), Piece.valueOf(PieceType.PAWN, Player.BLACK),
 			null, null, null, null, null, null, null, null, 
 			null, null, null, null, null, null, null, null, 
 			null, null, null, null, null, null, null, null, 
 			null, null, null, null, null, null, null, null, 
-			new Piece(PieceType.PAWN, Player.WHITE), new Piece(PieceType.PAWN, Player.WHITE), new Piece(PieceType.PAWN, Player.WHITE), new Piece(PieceType.PAWN, Player.WHITE), new Piece(PieceType.PAWN, Player.WHITE), new Piece(PieceType.PAWN, Player.WHITE), new Piece(PieceType.PAWN, Player.WHITE), new Piece(PieceType.PAWN, Player.WHITE),
-			new Piece(PieceType.ROOK, Player.WHITE), new Piece(PieceType.KNIGHT, Player.WHITE), new Piece(PieceType.BISHOP, Player.WHITE), new Piece(PieceType.QUEEN, Player.WHITE), new Piece(PieceType.KING, Player.WHITE), new Piece(PieceType.BISHOP, Player.WHITE), new Piece(PieceType.KNIGHT, Player.WHITE), new Piece(PieceType.ROOK, Player.WHITE)
+			Piece.valueOf(PieceType.PAWN, Player.WHITE), Piece.valueOf(PieceType.PAWN, Player.WHITE), Piece.valueOf(PieceType.PAWN, Player.WHITE), Piece.valueOf(PieceType.PAWN, Player.WHITE), Piece.valueOf(PieceType.PAWN, Player.WHITE), Piece.valueOf(PieceType.PAWN, Player.WHITE), Piece.valueOf(PieceType.PAWN, Player.WHITE), Piece.valueOf(PieceType.PAWN, Player.WHITE),
+			Piece.valueOf(PieceType.ROOK, Player.WHITE), Piece.valueOf(PieceType.KNIGHT, Player.WHITE), Piece.valueOf(PieceType.BISHOP, Player.WHITE), Piece.valueOf(PieceType.QUEEN, Player.WHITE), Piece.valueOf(PieceType.KING, Player.WHITE), Piece.valueOf(PieceType.BISHOP, Player.WHITE), Piece.valueOf(PieceType.KNIGHT, Player.WHITE), Piece.valueOf(PieceType.ROOK, Player.WHITE)
 		};
 		
 		// Copy this into the board array
@@ -100,6 +159,8 @@ public class GameState
 		enPassant = -1;
         whiteKing = 60;
         blackKing = 4;
+        initBitboards();
+        hash = Zobrist.hash(this);
 	}
 	
 	/**
@@ -109,13 +170,20 @@ public class GameState
 	 */
 	public GameState(GameState state)
 	{
-		// Copy the board array, including piece objects
+		// Copy the board array (pieces are shared instances) and bitboards
 		this.board = new Piece[64];
-		for(int i=0; i<64; i++)
-        {
-            if(state.board[i]!=null)
-                this.board[i] = new Piece(state.board[i].getType(),state.board[i].getPlayer());
-        }
+		System.arraycopy(state.board,0,this.board,0,64);
+        this.pieces = new long[2][];
+        this.pieces[0] = state.pieces[0].clone();
+        this.pieces[1] = state.pieces[1].clone();
+        this.occupancy = state.occupancy.clone();
+        this.occupied = state.occupied;
+        this.material = state.material.clone();
+        this.positional = state.positional.clone();
+        this.endgamePositional = state.endgamePositional.clone();
+        this.pieceCount = new int[2][];
+        this.pieceCount[0] = state.pieceCount[0].clone();
+        this.pieceCount[1] = state.pieceCount[1].clone();
 		// Copy information
 		this.activePlayer = state.activePlayer;
 		this.castleWhiteKingside = state.castleWhiteKingside;
@@ -125,6 +193,8 @@ public class GameState
 		this.enPassant = state.enPassant;
         this.whiteKing = state.whiteKing;
         this.blackKing = state.blackKing;
+        this.hash = state.hash;
+        this.pawnHash = state.pawnHash;
 	}
 
      /**
@@ -162,41 +232,41 @@ public class GameState
                      switch(c)
                      {
                          case 'p':
-                             this.board[i] = new Piece(PieceType.PAWN,Player.BLACK);
+                             this.board[i] = Piece.valueOf(PieceType.PAWN,Player.BLACK);
                              break;
                          case 'n':
-                             this.board[i] = new Piece(PieceType.KNIGHT,Player.BLACK);
+                             this.board[i] = Piece.valueOf(PieceType.KNIGHT,Player.BLACK);
                              break;
                          case 'b':
-                             this.board[i] = new Piece(PieceType.BISHOP,Player.BLACK);
+                             this.board[i] = Piece.valueOf(PieceType.BISHOP,Player.BLACK);
                              break;
                          case 'r':
-                             this.board[i] = new Piece(PieceType.ROOK,Player.BLACK);
+                             this.board[i] = Piece.valueOf(PieceType.ROOK,Player.BLACK);
                              break;
                          case 'q':
-                             this.board[i] = new Piece(PieceType.QUEEN,Player.BLACK);
+                             this.board[i] = Piece.valueOf(PieceType.QUEEN,Player.BLACK);
                              break;
                          case 'k':
-                             this.board[i] = new Piece(PieceType.KING,Player.BLACK);
+                             this.board[i] = Piece.valueOf(PieceType.KING,Player.BLACK);
                              this.blackKing = (byte)i;
                              break;
                          case 'P':
-                             this.board[i] = new Piece(PieceType.PAWN,Player.WHITE);
+                             this.board[i] = Piece.valueOf(PieceType.PAWN,Player.WHITE);
                              break;
                          case 'N':
-                             this.board[i] = new Piece(PieceType.KNIGHT,Player.WHITE);
+                             this.board[i] = Piece.valueOf(PieceType.KNIGHT,Player.WHITE);
                              break;
                          case 'B':
-                             this.board[i] = new Piece(PieceType.BISHOP,Player.WHITE);
+                             this.board[i] = Piece.valueOf(PieceType.BISHOP,Player.WHITE);
                              break;
                          case 'R':
-                             this.board[i] = new Piece(PieceType.ROOK,Player.WHITE);
+                             this.board[i] = Piece.valueOf(PieceType.ROOK,Player.WHITE);
                              break;
                          case 'Q':
-                             this.board[i] = new Piece(PieceType.QUEEN,Player.WHITE);
+                             this.board[i] = Piece.valueOf(PieceType.QUEEN,Player.WHITE);
                              break;
                          case 'K':
-                             this.board[i] = new Piece(PieceType.KING,Player.WHITE);
+                             this.board[i] = Piece.valueOf(PieceType.KING,Player.WHITE);
                              this.whiteKing = (byte)i;
                              break;
                      }
@@ -247,7 +317,9 @@ public class GameState
                  this.enPassant = Moves.toIndex(matcher.group(7));
              else
                  this.enPassant = -1;
-             
+
+             initBitboards();
+             this.hash = Zobrist.hash(this);
          }
          else
          {
@@ -258,11 +330,57 @@ public class GameState
 
      /**
       * Hashes the current board position and game state using the Zobrist method.
+      * The hash is kept up to date by doMove() and undoMove(), so this does
+      * not need to walk the board.
       * @return     the 64-bit long Zobrist hash key
       */
      public long hash()
      {
-         return Zobrist.hash(this);
+         return hash;
+     }
+
+     /**
+      * Hashes the pawns of both players using the Zobrist method. This is
+      * also kept up to date by doMove() and undoMove().
+      * @return     the 64-bit long Zobrist hash key of the pawns
+      */
+     public long pawnHash()
+     {
+         return pawnHash;
+     }
+
+     /**
+      * Turns the verification of the incrementally updated hash on or off.
+      * When it is on, every doMove() and undoMove() compares the hash with
+      * a full recomputation and throws an <code>IllegalStateException</code>
+      * if they differ.
+      *
+      * @param  verify  whether to verify the hash after every move
+      */
+     public static void setHashVerification(boolean verify)
+     {
+         verifyHash = verify;
+     }
+
+     /**
+      * Compares the incrementally updated hash and evaluation terms with a
+      * full recomputation.
+      *
+      * @param  move    the move that was just made or unmade (for the error message)
+      */
+     private void checkHash(String move)
+     {
+         if(hash != Zobrist.hash(this) || pawnHash != Zobrist.pawnHash(this))
+             throw new IllegalStateException("Hash mismatch after " + move + " in " + toFEN());
+         GameState copy = new GameState(this);
+         copy.initBitboards();
+         for(int player=0; player<2; player++)
+         {
+             if(material[player] != copy.material[player] || positional[player] != copy.positional[player]
+                     || endgamePositional[player] != copy.endgamePositional[player]
+                     || !java.util.Arrays.equals(pieceCount[player], copy.pieceCount[player]))
+                 throw new IllegalStateException("Evaluation terms mismatch after " + move + " in " + toFEN());
+         }
      }
 	
 	/**
@@ -277,61 +395,71 @@ public class GameState
             // Shift positions of pieces on board
             if(move.castle == null)
             {
-                board[move.dest] = board[move.source];
-                board[move.source] = null;
-                // If there was a promotion, change the piece type
-                if(move.promotion != null)
-                    board[move.dest].type = move.promotion;
-                // If the capture was via en passant, remove that piece
+                // Remove the captured piece, if any
                 if(move.viaEP)
                 {
                     if(activePlayer == Player.WHITE)
-                        board[move.dest+8] = null;
+                        removePiece(move.dest+8);
                     else
-                        board[move.dest-8] = null;
+                        removePiece(move.dest-8);
+                }
+                else if(board[move.dest] != null)
+                    removePiece(move.dest);
+                // If there was a promotion, replace the pawn
+                if(move.promotion != null)
+                {
+                    removePiece(move.source);
+                    putPiece(move.dest, Piece.valueOf(move.promotion, activePlayer));
                 }
+                else
+                    movePiece(move.source, move.dest);
             }
             else
             {
                 switch(move.castle)
                 {
                     case WK:
-                        board[62] = board[60];
-                        board[60] = null;
-                        board[61] = board[63];
-                        board[63] = null;
+                        movePiece(60, 62);
+                        movePiece(63, 61);
                         break;
                     case WQ:
-                        board[58] = board[60];
-                        board[60] = null;
-                        board[59] = board[56];
-                        board[56] = null;
+                        movePiece(60, 58);
+                        movePiece(56, 59);
                         break;
                     case BK:
-                        board[6] = board[4];
-                        board[4] = null;
-                        board[5] = board[7];
-                        board[7] = null;
+                        movePiece(4, 6);
+                        movePiece(7, 5);
                         break;
                     case BQ:
-                        board[2] = board[4];
-                        board[4] = null;
-                        board[3] = board[0];
-                        board[0] = null;
+                        movePiece(4, 2);
+                        movePiece(0, 3);
                         break;
                 }
             }
             // Toggle castling rights
             if(move.toggleWK)
+            {
                 castleWhiteKingside = !castleWhiteKingside;
+                hash ^= Zobrist.castle(Move.Castle.WK);
+            }
             if(move.toggleWQ)
+            {
                 castleWhiteQueenside = !castleWhiteQueenside;
+                hash ^= Zobrist.castle(Move.Castle.WQ);
+            }
             if(move.toggleBK)
+            {
                 castleBlackKingside = !castleBlackKingside;
+                hash ^= Zobrist.castle(Move.Castle.BK);
+            }
             if(move.toggleBQ)
+            {
                 castleBlackQueenside = !castleBlackQueenside;
+                hash ^= Zobrist.castle(Move.Castle.BQ);
+            }
 
             // Remember en passant square
+            hash ^= Zobrist.enPassant(enPassant) ^ Zobrist.enPassant(move.newEP);
             enPassant = move.newEP;
 
             // Relocate king
@@ -346,6 +474,10 @@ public class GameState
         
         // Change active player
         activePlayer = activePlayer.opponent();
+        hash ^= Zobrist.blackToMove();
+
+        if(verifyHash)
+            checkHash(String.valueOf(move));
     }
 
     /**
@@ -362,61 +494,72 @@ public class GameState
             {
                 // If there was a promotion, undo it
                 if(move.promotion != null)
-                    board[move.dest].type = PieceType.PAWN;
-                // Undo position shift
-                board[move.source] = board[move.dest];
-                if(move.viaEP)
                 {
-                    board[move.dest] = null;
-                    if(activePlayer.opponent() == Player.WHITE) // White did the en passant capture
-                        board[move.dest+8] = move.capturedPiece;
-                    else
-                        board[move.dest-8] = move.capturedPiece;
+                    removePiece(move.dest);
+                    putPiece(move.source, move.movedPiece);
                 }
                 else
-                    board[move.dest] = move.capturedPiece;
+                    movePiece(move.dest, move.source);
+                // Put back the captured piece
+                if(move.capturedPiece != null)
+                {
+                    if(move.viaEP)
+                    {
+                        if(activePlayer.opponent() == Player.WHITE) // White did the en passant capture
+                            putPiece(move.dest+8, move.capturedPiece);
+                        else
+                            putPiece(move.dest-8, move.capturedPiece);
+                    }
+                    else
+                        putPiece(move.dest, move.capturedPiece);
+                }
             }
             else
             {
                 switch(move.castle)
                 {
                     case WK:
-                        board[60] = board[62];
-                        board[62] = null;
-                        board[63] = board[61];
-                        board[61] = null;
+                        movePiece(62, 60);
+                        movePiece(61, 63);
                         break;
                     case WQ:
-                        board[60] = board[58];
-                        board[58] = null;
-                        board[56] = board[59];
-                        board[59] = null;
+                        movePiece(58, 60);
+                        movePiece(59, 56);
                         break;
                     case BK:
-                        board[4] = board[6];
-                        board[6] = null;
-                        board[7] = board[5];
-                        board[5] = null;
+                        movePiece(6, 4);
+                        movePiece(5, 7);
                         break;
                     case BQ:
-                        board[4] = board[2];
-                        board[2] = null;
-                        board[0] = board[3];
-                        board[3] = null;
+                        movePiece(2, 4);
+                        movePiece(3, 0);
                         break;
                 }
             }
             // Toggle castling rights
             if(move.toggleWK)
+            {
                 castleWhiteKingside = !castleWhiteKingside;
+                hash ^= Zobrist.castle(Move.Castle.WK);
+            }
             if(move.toggleWQ)
+            {
                 castleWhiteQueenside = !castleWhiteQueenside;
+                hash ^= Zobrist.castle(Move.Castle.WQ);
+            }
             if(move.toggleBK)
+            {
                 castleBlackKingside = !castleBlackKingside;
+                hash ^= Zobrist.castle(Move.Castle.BK);
+            }
             if(move.toggleBQ)
+            {
                 castleBlackQueenside = !castleBlackQueenside;
+                hash ^= Zobrist.castle(Move.Castle.BQ);
+            }
 
             // Remember the old en passant square
+            hash ^= Zobrist.enPassant(enPassant) ^ Zobrist.enPassant(move.oldEP);
             enPassant = move.oldEP;
 
             // Relocate king back
@@ -434,6 +577,332 @@ public class GameState
         
         // Change active player
         activePlayer = activePlayer.opponent();
+        hash ^= Zobrist.blackToMove();
+
+        if(verifyHash)
+            checkHash(String.valueOf(move));
+    }
+
+    /**
+     * Makes a packed move on the state (see <code>Move.encode()</code>).
+     * Unlike doMove(Move), this does not need any object to remember how to
+     * undo the move, because the state keeps a stack of what it overwrites.
+     * Every packed move must therefore be unmade with undoMove(int) in the
+     * reverse order.
+     *
+     * @param move  the packed move to make
+     */
+    public void doMove(int move)
+    {
+        // Remember what cannot be restored from the move itself
+        if(undoCount == undoHash.length)
+            growUndoStack();
+        undoCastleRights[undoCount] = castleRights();
+        undoEnPassant[undoCount] = enPassant;
+        undoHash[undoCount] = hash;
+        undoCount++;
+        int source = Move.source(move), dest = Move.dest(move);
+        // Shift positions of pieces on board
+        if(Move.isCastle(move))
+        {
+            // The rook jumps over the king
+            movePiece(source, dest);
+            if(dest > source)
+                movePiece(dest+1, dest-1);
+            else
+                movePiece(dest-2, dest+1);
+        }
+        else
+        {
+            // Remove the captured piece, if any
+            if(Move.isEnPassant(move))
+                removePiece(activePlayer == Player.WHITE ? dest+8 : dest-8);
+            else if(Move.isCapture(move))
+                removePiece(dest);
+            // If there was a promotion, replace the pawn
+            if(Move.isPromotion(move))
+            {
+                removePiece(source);
+                putPiece(dest, Piece.valueOf(Move.promotion(move), activePlayer.ordinal()));
+            }
+            else
+                movePiece(source, dest);
+        }
+        // Castling rights are lost when the king or a rook moves, or when a
+        // rook is captured
+        if(castleWhiteKingside && (source == 60 || source == 63 || dest == 63))
+        {
+            castleWhiteKingside = false;
+            hash ^= Zobrist.castle(Move.Castle.WK);
+        }
+        if(castleWhiteQueenside && (source == 60 || source == 56 || dest == 56))
+        {
+            castleWhiteQueenside = false;
+            hash ^= Zobrist.castle(Move.Castle.WQ);
+        }
+        if(castleBlackKingside && (source == 4 || source == 7 || dest == 7))
+        {
+            castleBlackKingside = false;
+            hash ^= Zobrist.castle(Move.Castle.BK);
+        }
+        if(castleBlackQueenside && (source == 4 || source == 0 || dest == 0))
+        {
+            castleBlackQueenside = false;
+            hash ^= Zobrist.castle(Move.Castle.BQ);
+        }
+        // Remember en passant square
+        byte newEP = Move.isDoublePush(move) ? (byte)((source+dest)/2) : -1;
+        hash ^= Zobrist.enPassant(enPassant) ^ Zobrist.enPassant(newEP);
+        enPassant = newEP;
+        // Relocate king
+        if(Move.moved(move) == PieceType.KING.ordinal())
+        {
+            if(activePlayer == Player.WHITE)
+                whiteKing = (byte)dest;
+            else
+                blackKing = (byte)dest;
+        }
+        // Change active player
+        activePlayer = activePlayer.opponent();
+        hash ^= Zobrist.blackToMove();
+
+        if(verifyHash)
+            checkHash(Move.toString(move));
+    }
+
+    /**
+     * Unmakes the last packed move made by doMove(int) on this state.
+     *
+     * @param move  the packed move to unmake
+     */
+    public void undoMove(int move)
+    {
+        // Change active player back to the one who made the move
+        activePlayer = activePlayer.opponent();
+        int source = Move.source(move), dest = Move.dest(move);
+        // Switch back pieces from the squares
+        if(Move.isCastle(move))
+        {
+            movePiece(dest, source);
+            if(dest > source)
+                movePiece(dest-1, dest+1);
+            else
+                movePiece(dest+1, dest-2);
+        }
+        else
+        {
+            // If there was a promotion, undo it
+            if(Move.isPromotion(move))
+            {
+                removePiece(dest);
+                putPiece(source, Piece.valueOf(PieceType.PAWN.ordinal(), activePlayer.ordinal()));
+            }
+            else
+                movePiece(dest, source);
+            // Put back the captured piece
+            if(Move.isCapture(move))
+            {
+                Piece captured = Piece.valueOf(Move.captured(move), activePlayer.opponent().ordinal());
+                if(Move.isEnPassant(move))
+                    putPiece(activePlayer == Player.WHITE ? dest+8 : dest-8, captured);
+                else
+                    putPiece(dest, captured);
+            }
+        }
+        // Relocate king back
+        if(Move.moved(move) == PieceType.KING.ordinal())
+        {
+            if(activePlayer == Player.WHITE)
+                whiteKing = (byte)source;
+            else
+                blackKing = (byte)source;
+        }
+        // Restore what the move overwrote
+        undoCount--;
+        setCastleRights(undoCastleRights[undoCount]);
+        enPassant = undoEnPassant[undoCount];
+        hash = undoHash[undoCount];
+
+        if(verifyHash)
+            checkHash(Move.toString(move));
+    }
+
+    /**
+     * Passes the turn to the opponent without moving anything. This is not
+     * a legal move, but the search uses it to see whether the position is
+     * good enough even if the opponent could move twice. It must be undone
+     * with undoNullMove(), in the same order as the packed moves.
+     */
+    public void doNullMove()
+    {
+        if(undoCount == undoHash.length)
+            growUndoStack();
+        undoCastleRights[undoCount] = castleRights();
+        undoEnPassant[undoCount] = enPassant;
+        undoHash[undoCount] = hash;
+        undoCount++;
+        // The en passant capture is lost
+        hash ^= Zobrist.enPassant(enPassant) ^ Zobrist.enPassant(-1);
+        enPassant = -1;
+        activePlayer = activePlayer.opponent();
+        hash ^= Zobrist.blackToMove();
+
+        if(verifyHash)
+            checkHash("null");
+    }
+
+    /**
+     * Unmakes the last null move made by doNullMove().
+     */
+    public void undoNullMove()
+    {
+        activePlayer = activePlayer.opponent();
+        undoCount--;
+        setCastleRights(undoCastleRights[undoCount]);
+        enPassant = undoEnPassant[undoCount];
+        hash = undoHash[undoCount];
+
+        if(verifyHash)
+            checkHash("null");
+    }
+
+    /**
+     * Doubles the room of the stack used by doMove(int) and undoMove(int)
+     */
+    private void growUndoStack()
+    {
+        int size = undoHash.length * 2;
+        byte[] castleRights = new byte[size];
+        byte[] enPassant = new byte[size];
+        long[] hash = new long[size];
+        System.arraycopy(undoCastleRights, 0, castleRights, 0, undoCount);
+        System.arraycopy(undoEnPassant, 0, enPassant, 0, undoCount);
+        System.arraycopy(undoHash, 0, hash, 0, undoCount);
+        undoCastleRights = castleRights;
+        undoEnPassant = enPassant;
+        undoHash = hash;
+    }
+
+    /**
+     * Packs the castling rights into the lower 4 bits of a byte, in the
+     * order of <code>Move.Castle</code>
+     *
+     * @return  the packed castling rights
+     */
+    private byte castleRights()
+    {
+        return (byte)((castleWhiteKingside ? 1 : 0) | (castleWhiteQueenside ? 2 : 0)
+                | (castleBlackKingside ? 4 : 0) | (castleBlackQueenside ? 8 : 0));
+    }
+
+    /**
+     * Unpacks the castling rights from castleRights(). The hash is not changed.
+     *
+     * @param rights    the packed castling rights
+     */
+    private void setCastleRights(byte rights)
+    {
+        castleWhiteKingside = (rights & 1) != 0;
+        castleWhiteQueenside = (rights & 2) != 0;
+        castleBlackKingside = (rights & 4) != 0;
+        castleBlackQueenside = (rights & 8) != 0;
+    }
+
+    /**
+     * Places a piece on an empty square, updating the board array, the
+     * bitboards, the hash and the evaluation terms.
+     *
+     * @param sq        the empty square
+     * @param piece     the piece to place
+     */
+    private void putPiece(int sq, Piece piece)
+    {
+        long bit = 1L << sq;
+        int player = piece.getPlayer().ordinal(), type = piece.getType().ordinal();
+        board[sq] = piece;
+        pieces[player][type] |= bit;
+        occupancy[player] |= bit;
+        occupied |= bit;
+        hash ^= Zobrist.piece(player, type, sq);
+        if(type == PAWN)
+            pawnHash ^= Zobrist.piece(player, type, sq);
+        material[player] += Eval.pieceValue[type];
+        positional[player] += Eval.piecePositionalScore[player][type][sq];
+        endgamePositional[player] += Eval.endgamePositionalScore[player][type][sq];
+        pieceCount[player][type]++;
+    }
+
+    /**
+     * Removes the piece from an occupied square, updating the board array,
+     * the bitboards, the hash and the evaluation terms.
+     *
+     * @param sq        the occupied square
+     * @return  the removed piece
+     */
+    private Piece removePiece(int sq)
+    {
+        Piece piece = board[sq];
+        long bit = 1L << sq;
+        int player = piece.getPlayer().ordinal(), type = piece.getType().ordinal();
+        board[sq] = null;
+        pieces[player][type] ^= bit;
+        occupancy[player] ^= bit;
+        occupied ^= bit;
+        hash ^= Zobrist.piece(player, type, sq);
+        if(type == PAWN)
+            pawnHash ^= Zobrist.piece(player, type, sq);
+        material[player] -= Eval.pieceValue[type];
+        positional[player] -= Eval.piecePositionalScore[player][type][sq];
+        endgamePositional[player] -= Eval.endgamePositionalScore[player][type][sq];
+        pieceCount[player][type]--;
+        return piece;
+    }
+
+    /**
+     * Moves a piece to an empty square, updating the board array, the
+     * bitboards, the hash and the piece-square scores.
+     *
+     * @param source    the occupied square
+     * @param dest      the empty square
+     */
+    private void movePiece(int source, int dest)
+    {
+        Piece piece = board[source];
+        long bits = (1L << source) | (1L << dest);
+        int player = piece.getPlayer().ordinal(), type = piece.getType().ordinal();
+        board[dest] = piece;
+        board[source] = null;
+        pieces[player][type] ^= bits;
+        occupancy[player] ^= bits;
+        occupied ^= bits;
+        hash ^= Zobrist.piece(player, type, source) ^ Zobrist.piece(player, type, dest);
+        if(type == PAWN)
+            pawnHash ^= Zobrist.piece(player, type, source) ^ Zobrist.piece(player, type, dest);
+        positional[player] += Eval.piecePositionalScore[player][type][dest]
+                - Eval.piecePositionalScore[player][type][source];
+        endgamePositional[player] += Eval.endgamePositionalScore[player][type][dest]
+                - Eval.endgamePositionalScore[player][type][source];
+    }
+
+    /**
+     * Builds the bitboards and the evaluation terms from the board array.
+     * Used by the constructors after the board array has been filled in.
+     */
+    private void initBitboards()
+    {
+        pieces = new long[2][6];
+        occupancy = new long[2];
+        occupied = 0;
+        pawnHash = 0;
+        material = new int[2];
+        positional = new int[2];
+        endgamePositional = new int[2];
+        pieceCount = new int[2][6];
+        for(int sq=0; sq<64; sq++)
+        {
+            if(board[sq] != null)
+                putPiece(sq, board[sq]);
+        }
     }
 
     /**
@@ -443,228 +912,447 @@ public class GameState
      */
     public MoveList generateMoves()
     {
-        MoveList moves = new MoveList();
-        for(byte s=0; s<64; s++ )
+        return toMoveList(true, false);
+    }
+
+    /**
+     * Generates a list of pseudo-legal moves from the current state. These
+     * moves follow the movement rules of the pieces, but some of them might
+     * leave the king of the active player in check. Each move must be tested
+     * with <code>isLegal()</code> before it is made, which is cheaper than
+     * testing all of them in advance when most of them will never be tried.
+     *
+     * @return  a list of pseudo-legal moves
+     */
+    public MoveList generatePseudoLegalMoves()
+    {
+        return toMoveList(false, false);
+    }
+
+    /**
+     * Generates a list of legal captures and promotions from the current state
+     * @return  the list of moves that are captures or promotions
+     */
+    public MoveList generateCaptures()
+    {
+        return toMoveList(true, true);
+    }
+
+    /**
+     * Generates a list of pseudo-legal captures and promotions from the
+     * current state. Each move must be tested with <code>isLegal()</code>
+     * before it is made.
+     * @return  the list of moves that are captures or promotions
+     */
+    public MoveList generatePseudoLegalCaptures()
+    {
+        return toMoveList(false, true);
+    }
+
+    /**
+     * Generates the moves from the current state as Move objects.
+     *
+     * @param legal         whether to keep only legal moves, or all pseudo-legal moves
+     * @param capturesOnly  whether to keep only captures and promotions
+     * @return  the list of moves
+     */
+    private MoveList toMoveList(boolean legal, boolean capturesOnly)
+    {
+        int[] moves = new int[MAX_MOVES];
+        int count = capturesOnly ? generatePseudoLegalCaptures(moves, 0) : generatePseudoLegalMoves(moves, 0);
+        MoveList list = new MoveList();
+        for(int i=0; i<count; i++)
+        {
+            if(!legal || isLegal(moves[i]))
+                list.add(Move.valueOf(this, moves[i]));
+        }
+        return list;
+    }
+
+    /**
+     * Generates the pseudo-legal moves from the current state as packed ints
+     * (see <code>Move.encode()</code>) into an array, without allocating any
+     * objects. Each move must be tested with <code>isLegal()</code> before
+     * it is made.
+     *
+     * @param moves     the array to write the moves to, with room for at
+     *                  least <code>MAX_MOVES</code> moves after <code>start</code>
+     * @param start     the index at which to write the first move
+     * @return  the index after the last move written
+     */
+    public int generatePseudoLegalMoves(int[] moves, int start)
+    {
+        return generate(moves, start, true, true);
+    }
+
+    /**
+     * Generates the pseudo-legal moves that are neither captures nor
+     * promotions (including castles) as packed ints into an array.
+     * Each move must be tested with <code>isLegal()</code> before it is made.
+     *
+     * @param moves     the array to write the moves to, with room for at
+     *                  least <code>MAX_MOVES</code> moves after <code>start</code>
+     * @param start     the index at which to write the first move
+     * @return  the index after the last move written
+     */
+    public int generatePseudoLegalQuiets(int[] moves, int start)
+    {
+        return generate(moves, start, false, true);
+    }
+
+    /**
+     * Generates the captures and promotions and/or the other pseudo-legal
+     * moves from the current state as packed ints into an array. Only the
+     * squares that the requested moves can go to are looked at, so that the
+     * captures are found without going through the other moves.
+     *
+     * @param moves     the array to write the moves to
+     * @param start     the index at which to write the first move
+     * @param captures  whether to generate the captures and promotions
+     * @param quiets    whether to generate the other moves
+     * @return  the index after the last move written
+     */
+    private int generate(int[] moves, int start, boolean captures, boolean quiets)
+    {
+        int us = activePlayer.ordinal();
+        long targets = (captures ? occupancy[1-us] : 0) | (quiets ? ~occupied : 0);
+        long bb, attacks;
+        int s, n = start;
+        // Kings
+        for(bb = pieces[us][PieceType.KING.ordinal()]; bb != 0; bb &= bb-1)
         {
-            if(board[s] == null || board[s].getPlayer() != activePlayer)
-                continue;
-            switch(board[s].getType())
+            s = Bitboard.firstSquare(bb);
+            n = addMoves(moves, n, s, Bitboard.king[s] & targets);
+        }
+        // Knights
+        for(bb = pieces[us][PieceType.KNIGHT.ordinal()]; bb != 0; bb &= bb-1)
+        {
+            s = Bitboard.firstSquare(bb);
+            n = addMoves(moves, n, s, Bitboard.knight[s] & targets);
+        }
+        // Bishops
+        for(bb = pieces[us][PieceType.BISHOP.ordinal()]; bb != 0; bb &= bb-1)
+        {
+            s = Bitboard.firstSquare(bb);
+            n = addMoves(moves, n, s, Bitboard.bishopAttacks(s, occupied) & targets);
+        }
+        // Rooks
+        for(bb = pieces[us][PieceType.ROOK.ordinal()]; bb != 0; bb &= bb-1)
+        {
+            s = Bitboard.firstSquare(bb);
+            n = addMoves(moves, n, s, Bitboard.rookAttacks(s, occupied) & targets);
+        }
+        // Queens
+        for(bb = pieces[us][PieceType.QUEEN.ordinal()]; bb != 0; bb &= bb-1)
+        {
+            s = Bitboard.firstSquare(bb);
+            n = addMoves(moves, n, s, Bitboard.queenAttacks(s, occupied) & targets);
+        }
+        // Pawns
+        // Pushes go north (-8) for white and south (+8) for black
+        int push = (activePlayer == Player.WHITE) ? -8 : 8;
+        int startRank = (activePlayer == Player.WHITE) ? 2 : 7;
+        int lastRank = (activePlayer == Player.WHITE) ? 7 : 2;
+        int pawn = PieceType.PAWN.ordinal();
+        long enemies = captures ? occupancy[1-us] : 0;
+        if(captures && enPassant != -1)
+            enemies |= 1L << enPassant;
+        for(bb = pieces[us][pawn]; bb != 0; bb &= bb-1)
+        {
+            s = Bitboard.firstSquare(bb);
+            int d = s + push;
+            if(board[d] == null)
             {
-                case KING:
-                    for(byte d : Moves.king[s])
-                    {
-                        if(board[d] == null || board[d].getPlayer() != activePlayer)
-                        {
-                            moves.add(new Move(this, s, d));
-                        }
-                    }
-                    break;
-                case KNIGHT:
-                    for(byte d : Moves.knight[s])
-                    {
-                        if(board[d] == null || board[d].getPlayer() != activePlayer)
-                            moves.add(new Move(this, s, d));
-                    }
-                    break;
-                case BISHOP:
-                    for(byte[][] ray : Moves.bishop)
-                    {
-                        for(byte d : ray[s])
-                        {
-                            if(board[d] == null)
-                                moves.add(new Move(this, s, d));
-                            else
-                            {
-                                if(board[d].getPlayer() != activePlayer)
-                                {
-                                    moves.add(new Move(this, s, d));
-                                }
-                                break;
-                            }
-                        }
-                    }
-                    break;
-                case ROOK:
-                    for(byte[][] ray : Moves.rook)
-                    {
-                        for(byte d : ray[s])
-                        {
-                            if(board[d] == null)
-                            {
-                                moves.add(new Move(this, s, d));
-                            }
-                            else
-                            {
-                                if(board[d].getPlayer() != activePlayer)
-                                {
-                                    moves.add(new Move(this, s, d));
-                                }
-                                break;
-                            }
-                        }
-                    }
-                    break;
-                case QUEEN:
-                    for(byte[][] ray : Moves.queen)
-                    {
-                        for(byte d : ray[s])
-                        {
-                            if(board[d] == null)
-                            {
-                                moves.add(new Move(this, s, d));
-                            }
-                            else
-                            {
-                                if(board[d].getPlayer() != activePlayer)
-                                {
-                                    moves.add(new Move(this, s, d));
-                                }
-                                break;
-                            }
-                        }
-                    }
-                    break;
-                case PAWN:
-                    switch(activePlayer)
-                    {
-                        case WHITE:
-                            for(byte d : Moves.pawnW[s])
-                            {
-                                if(board[d] == null)
-                                {
-                                    if(Moves.toRank(s) == 2 && Moves.toRank(d) == 4)
-                                    {
-                                        if(board[d+8]==null)
-                                        {
-                                            moves.add(new Move(this, s, d, null, false, d+8));
-                                        }
-                                    }
-                                    else if(Moves.toRank(s) == 7)
-                                    {
-                                        moves.add(new Move(this, s, d, PieceType.QUEEN,  false, -1));
-                                        moves.add(new Move(this, s, d, PieceType.ROOK,   false, -1));
-                                        moves.add(new Move(this, s, d, PieceType.BISHOP, false, -1));
-                                        moves.add(new Move(this, s, d, PieceType.KNIGHT, false, -1));
-                                    }
-                                    else
-                                        moves.add(new Move(this, s, d));
-                                }
-                            }
-                            for(byte d: Moves.pawnWX[s])
-                            {
-                                if(board[d] != null && board[d].getPlayer() != activePlayer)
-                                {
-                                    if(Moves.toRank(s) == 7)
-                                    {
-                                        moves.add(new Move(this, s, d, PieceType.QUEEN,  false, -1));
-                                        moves.add(new Move(this, s, d, PieceType.ROOK,   false, -1));
-                                        moves.add(new Move(this, s, d, PieceType.BISHOP, false, -1));
-                                        moves.add(new Move(this, s, d, PieceType.KNIGHT, false, -1));
-                                    }
-                                    else
-                                        moves.add(new Move(this, s, d));
-                                }
-                                else if(d == enPassant)
-                                {
-                                    moves.add(new Move(this, s, d, null, true, -1));
-                                }
-                            }
-                            break;
-                        case BLACK:
-                            for(byte d : Moves.pawnB[s])
-                            {
-                                if(board[d] == null)
-                                {
-                                    if(Moves.toRank(s) == 7 && Moves.toRank(d) == 5)
-                                    {
-                                        if(board[d-8]==null)
-                                        {
-                                            moves.add(new Move(this, s, d, null, false, d-8));
-                                        }
-                                    }
-                                    else if(Moves.toRank(s) == 2)
-                                    {
-                                        moves.add(new Move(this, s, d, PieceType.QUEEN,  false, -1));
-                                        moves.add(new Move(this, s, d, PieceType.ROOK,   false, -1));
-                                        moves.add(new Move(this, s, d, PieceType.BISHOP, false, -1));
-                                        moves.add(new Move(this, s, d, PieceType.KNIGHT, false, -1));
-                                    }
-                                    else
-                                        moves.add(new Move(this, s, d));
-                                }
-                            }
-                            for(byte d: Moves.pawnBX[s])
-                            {
-                                if(board[d] != null && board[d].getPlayer() != activePlayer)
-                                {
-                                    if(Moves.toRank(s) == 2)
-                                    {
-                                        moves.add(new Move(this, s, d, PieceType.QUEEN,  false, -1));
-                                        moves.add(new Move(this, s, d, PieceType.ROOK,   false, -1));
-                                        moves.add(new Move(this, s, d, PieceType.BISHOP, false, -1));
-                                        moves.add(new Move(this, s, d, PieceType.KNIGHT, false, -1));
-                                    }
-                                    else
-                                        moves.add(new Move(this, s, d));
-                                }
-                                else if(d == enPassant)
-                                {
-                                    moves.add(new Move(this, s, d, null, true, -1));
-                                }
-                            }
-                            break;
-                    }
-                    break;
+                if(Moves.toRank((byte)s) == lastRank)
+                {
+                    if(captures)
+                        n = addPromotions(moves, n, s, d, -1);
+                }
+                else if(quiets)
+                {
+                    moves[n++] = Move.encode(s, d, 0, -1, pawn, 0);
+                    if(Moves.toRank((byte)s) == startRank && board[d+push] == null)
+                        moves[n++] = Move.encode(s, d+push, 0, -1, pawn, Move.DOUBLE_PUSH);
+                }
+            }
+            for(attacks = Bitboard.pawnAttacks[us][s] & enemies; attacks != 0; attacks &= attacks-1)
+            {
+                d = Bitboard.firstSquare(attacks);
+                if(d == enPassant)
+                    moves[n++] = Move.encode(s, d, 0, pawn, pawn, Move.EN_PASSANT);
+                else if(Moves.toRank((byte)s) == lastRank)
+                    n = addPromotions(moves, n, s, d, board[d].getType().ordinal());
+                else
+                    moves[n++] = Move.encode(s, d, 0, board[d].getType().ordinal(), pawn, 0);
             }
         }
+        if(quiets)
+            n = addCastles(moves, n);
+        return n;
+    }
+
+    /**
+     * Adds the castles that the active player can make. The squares the
+     * king crosses are tested here, so these are always legal.
+     *
+     * @param moves     the array to write the moves to
+     * @param n         the index at which to write the first move
+     * @return  the index after the last move written
+     */
+    private int addCastles(int[] moves, int n)
+    {
+        int king = PieceType.KING.ordinal();
         switch(activePlayer)
         {
             case WHITE:
-                if(castleWhiteKingside &&!isUnderAttack(60) &&
-                        board[61]==null && !isUnderAttack(61) &&
-                        board[62]==null && !isUnderAttack(62) )
+                if(castleWhiteKingside && (occupied & 0x6000000000000000L) == 0 &&
+                        !isUnderAttack(60) && !isUnderAttack(61) && !isUnderAttack(62) )
                 {
-                    moves.add(new Move(this, Move.Castle.WK));
+                    moves[n++] = Move.encode(60, 62, 0, -1, king, Move.CASTLE);
                 }
-                if(castleWhiteQueenside &&!isUnderAttack(60) &&
-                        board[59]==null && !isUnderAttack(59) &&
-                        board[58]==null && !isUnderAttack(58) && board[57] == null )
+                if(castleWhiteQueenside && (occupied & 0x0E00000000000000L) == 0 &&
+                        !isUnderAttack(60) && !isUnderAttack(59) && !isUnderAttack(58) )
                 {
-                    moves.add(new Move(this, Move.Castle.WQ));
+                    moves[n++] = Move.encode(60, 58, 0, -1, king, Move.CASTLE);
                 }
                 break;
             case BLACK:
-                if(castleBlackKingside &&!isUnderAttack(4) &&
-                        board[5]==null && !isUnderAttack(5) &&
-                        board[6]==null && !isUnderAttack(6) )
+                if(castleBlackKingside && (occupied & 0x0000000000000060L) == 0 &&
+                        !isUnderAttack(4) && !isUnderAttack(5) && !isUnderAttack(6) )
                 {
-                    moves.add(new Move(this, Move.Castle.BK));
+                    moves[n++] = Move.encode(4, 6, 0, -1, king, Move.CASTLE);
                 }
-                if(castleBlackQueenside &&!isUnderAttack(4) &&
-                        board[3]==null && !isUnderAttack(3) &&
-                        board[2]==null && !isUnderAttack(2) && board[1] == null )
+                if(castleBlackQueenside && (occupied & 0x000000000000000EL) == 0 &&
+                        !isUnderAttack(4) && !isUnderAttack(3) && !isUnderAttack(2) )
                 {
-                    moves.add(new Move(this, Move.Castle.BQ));
+                    moves[n++] = Move.encode(4, 2, 0, -1, king, Move.CASTLE);
                 }
                 break; 
         }
-        return moves;
+        return n;
     }
 
     /**
-     * Generates a list of legal captures from the current state
-     * @return  the list of moves that are captures
+     * Generates the pseudo-legal captures and promotions from the current
+     * state as packed ints into an array. The pieces only look for enemy
+     * pieces to capture, and the pawns also for the en passant square and
+     * the empty squares of the last rank. Each move must be tested with
+     * <code>isLegal()</code> before it is made.
+     *
+     * @param moves     the array to write the moves to, with room for at
+     *                  least <code>MAX_MOVES</code> moves after <code>start</code>
+     * @param start     the index at which to write the first move
+     * @return  the index after the last move written
      */
-    public MoveList generateCaptures()
+    public int generatePseudoLegalCaptures(int[] moves, int start)
+    {
+        return generate(moves, start, true, false);
+    }
+
+    /**
+     * Adds a simple move from the source square to each of the target squares.
+     *
+     * @param moves     the array to write the moves to
+     * @param n         the index at which to write the first move
+     * @param source    the source square
+     * @param targets   the bitboard of target squares
+     * @return  the index after the last move written
+     */
+    private int addMoves(int[] moves, int n, int source, long targets)
     {
-        MoveList allMoves = generateMoves();
-        MoveList captures = new MoveList();
-        for(Move move : allMoves)
+        int moved = board[source].getType().ordinal();
+        for(; targets != 0; targets &= targets-1)
         {
-            if(move.isCapture())
-                captures.add(move);
+            int dest = Bitboard.firstSquare(targets);
+            int captured = (board[dest] == null) ? -1 : board[dest].getType().ordinal();
+            moves[n++] = Move.encode(source, dest, 0, captured, moved, 0);
         }
-        return captures;
+        return n;
+    }
+
+    /**
+     * Adds the four possible promotions of a pawn move.
+     *
+     * @param moves     the array to write the moves to
+     * @param n         the index at which to write the first move
+     * @param source    the source square
+     * @param dest      the target square on the last rank
+     * @param captured  PieceType ordinal of the captured piece, or -1 if no capture
+     * @return  the index after the last move written
+     */
+    private int addPromotions(int[] moves, int n, int source, int dest, int captured)
+    {
+        int pawn = PieceType.PAWN.ordinal();
+        moves[n++] = Move.encode(source, dest, PieceType.QUEEN.ordinal(),  captured, pawn, 0);
+        moves[n++] = Move.encode(source, dest, PieceType.ROOK.ordinal(),   captured, pawn, 0);
+        moves[n++] = Move.encode(source, dest, PieceType.BISHOP.ordinal(), captured, pawn, 0);
+        moves[n++] = Move.encode(source, dest, PieceType.KNIGHT.ordinal(), captured, pawn, 0);
+        return n;
+    }
+
+    /**
+     * Rebuilds a packed move from its hash (see <code>Move.hash()</code>),
+     * if it is a pseudo-legal move in this state. This lets a move taken from
+     * the transposition table or the killer moves be tried before any move
+     * is generated, even though it might have been stored for another state.
+     *
+     * @param hash  the 16-bit hash of a move
+     * @return  the packed move, or 0 if it is not pseudo-legal in this state
+     */
+    public int toPseudoLegalMove(short hash)
+    {
+        int source = (hash >> 9) & 63, dest = (hash >> 3) & 63, promotion = hash & 7;
+        Piece piece = board[source];
+        if(hash == 0 || piece == null || piece.getPlayer() != activePlayer
+                || (occupancy[activePlayer.ordinal()] & (1L << dest)) != 0)
+            return 0;
+        int moved = piece.getType().ordinal();
+        int captured = (board[dest] == null) ? -1 : board[dest].getType().ordinal();
+        if(promotion != 0 && moved != PAWN)
+            return 0;
+        long attacks;
+        switch(piece.getType())
+        {
+            case PAWN:
+                int push = (activePlayer == Player.WHITE) ? -8 : 8;
+                int startRank = (activePlayer == Player.WHITE) ? 2 : 7;
+                int lastRank = (activePlayer == Player.WHITE) ? 7 : 2;
+                // A promotion must be given if and only if the pawn reaches the last rank
+                if((Moves.toRank((byte)source) == lastRank) != (promotion != 0)
+                        || promotion > PieceType.QUEEN.ordinal())
+                    return 0;
+                long pawnAttacks = Bitboard.pawnAttacks[activePlayer.ordinal()][source];
+                if(captured != -1)
+                    return ((pawnAttacks & (1L << dest)) != 0) ? Move.encode(source, dest, promotion, captured, PAWN, 0) : 0;
+                if(dest == enPassant && (pawnAttacks & (1L << dest)) != 0)
+                    return Move.encode(source, dest, 0, PAWN, PAWN, Move.EN_PASSANT);
+                if(dest == source + push)
+                    return Move.encode(source, dest, promotion, -1, PAWN, 0);
+                if(dest == source + 2*push && Moves.toRank((byte)source) == startRank && board[source+push] == null)
+                    return Move.encode(source, dest, 0, -1, PAWN, Move.DOUBLE_PUSH);
+                return 0;
+            case KNIGHT:
+                attacks = Bitboard.knight[source];
+                break;
+            case BISHOP:
+                attacks = Bitboard.bishopAttacks(source, occupied);
+                break;
+            case ROOK:
+                attacks = Bitboard.rookAttacks(source, occupied);
+                break;
+            case QUEEN:
+                attacks = Bitboard.queenAttacks(source, occupied);
+                break;
+            default:
+                // Only the king moves two squares along the rank, to castle
+                if(Math.abs(dest - source) == 2)
+                {
+                    int n = addCastles(castleMoves, 0);
+                    for(int i=0; i<n; i++)
+                    {
+                        if(Move.dest(castleMoves[i]) == dest)
+                            return castleMoves[i];
+                    }
+                    return 0;
+                }
+                attacks = Bitboard.king[source];
+                break;
+        }
+        if((attacks & (1L << dest)) == 0)
+            return 0;
+        return Move.encode(source, dest, 0, captured, moved, 0);
+    }
+
+    /**
+     * Determines whether a pseudo-legal move from this state is legal, i.e.
+     * it does not leave the king of the active player in check.
+     *
+     * @param move  a pseudo-legal move from this state
+     * @return  <code>true</code> if the move is legal
+     * @see     isLegal(int)
+     */
+    public boolean isLegal(Move move)
+    {
+        return isLegal(move.encode());
+    }
+
+    /**
+     * Determines whether a pseudo-legal packed move from this state is legal,
+     * i.e. it does not leave the king of the active player in check.
+     *
+     * In the common case, when the king is not in check and the moving piece
+     * is not pinned, this needs no attack test at all. King moves only test
+     * whether the target square is attacked. The move is made and unmade only
+     * for en passant captures.
+     *
+     * @param move  a pseudo-legal packed move from this state
+     * @return  <code>true</code> if the move is legal
+     */
+    public boolean isLegal(int move)
+    {
+        // Castles are only generated if the king does not cross attacked squares
+        if(Move.isCastle(move))
+            return true;
+        // En passant removes two pieces from the rank, so just try it
+        if(Move.isEnPassant(move))
+        {
+            doMove(move);
+            boolean legal = !isInCheck(activePlayer.opponent());
+            undoMove(move);
+            return legal;
+        }
+        int source = Move.source(move), dest = Move.dest(move);
+        int king = findKing(activePlayer);
+        // The king must not move to an attacked square. It is removed from the
+        // board for the test so that it does not block the ray of a slider.
+        if(source == king)
+            return !isCoveredBy(activePlayer.opponent(), dest, occupied ^ (1L << king));
+        updatePinsAndCheckers();
+        if(checkers != 0)
+        {
+            // In double check only the king can move
+            if((checkers & (checkers-1)) != 0)
+                return false;
+            // Otherwise the checker must be captured or the check blocked
+            int checker = Bitboard.firstSquare(checkers);
+            if(((checkers | Bitboard.between[king][checker]) & (1L << dest)) == 0)
+                return false;
+        }
+        // A pinned piece can only move along the line of the pin
+        if((pinned & (1L << source)) != 0)
+            return Bitboard.direction[king][source] == Bitboard.direction[king][dest];
+        return true;
+    }
+
+    /**
+     * Finds the pieces of the active player that are pinned to their king
+     * and the enemy pieces that give check, unless they were already found
+     * for this position.
+     */
+    private void updatePinsAndCheckers()
+    {
+        if(pinsKnown && pinsHash == hash)
+            return;
+        int us = activePlayer.ordinal(), them = 1-us;
+        int king = findKing(activePlayer);
+        Player opponent = activePlayer.opponent();
+        // Find direct attackers on the king
+        checkers = attackersOf(opponent, king, occupied);
+        // Find enemy sliders that would attack the king on an empty board
+        // and see if exactly one friendly piece stands in between
+        pinned = 0;
+        long snipers = (Bitboard.bishopAttacks(king, 0) &
+                    (pieces[them][PieceType.BISHOP.ordinal()] | pieces[them][PieceType.QUEEN.ordinal()]))
+                | (Bitboard.rookAttacks(king, 0) &
+                    (pieces[them][PieceType.ROOK.ordinal()] | pieces[them][PieceType.QUEEN.ordinal()]));
+        for(; snipers != 0; snipers &= snipers-1)
+        {
+            long blockers = Bitboard.between[king][Bitboard.firstSquare(snipers)] & occupied;
+            if(blockers != 0 && (blockers & (blockers-1)) == 0)
+                pinned |= blockers & occupancy[us];
+        }
+        pinsHash = hash;
+        pinsKnown = true;
     }
 
 	/**
@@ -711,81 +1399,126 @@ public class GameState
 	 */
 	public boolean isCoveredBy(Player player, int sq)
 	{
-		byte i,j,x; Piece p; byte[][] ray;
-		// First check for kings
-		for(i=0; i<Moves.king[sq].length; i++)
-		{
-			x = Moves.king[sq][i];
-			p = this.getBoard()[x];
-			if(p != null && p.getType() == PieceType.KING && p.getPlayer() == player)
-				return true;
-		}
-		// Check knights
-		for(i=0; i<Moves.knight[sq].length; i++)
-		{
-			x = Moves.knight[sq][i];
-			p = this.getBoard()[x];
-			if(p != null && p.getType() == PieceType.KNIGHT && p.getPlayer() == player)
-				return true;
-		}
+		return isCoveredBy(player, sq, occupied);
+	}
+
+	/**
+	 * Determines whether a square is covered by given player, with sliding
+	 * pieces blocked by the given occupancy instead of the actual one.
+	 *
+	 * @param	player      the player who might cover the area
+	 * @param	sq			the target square to check
+	 * @param	occupied	the bitboard of squares that block sliding pieces
+	 * @return	whether or not the square is covered
+	 */
+	private boolean isCoveredBy(Player player, int sq, long occupied)
+	{
+		long[] p = pieces[player.ordinal()];
+		// Check the leapers first as they are the cheapest
+		if((Bitboard.knight[sq] & p[PieceType.KNIGHT.ordinal()]) != 0)
+			return true;
+		if((Bitboard.king[sq] & p[PieceType.KING.ordinal()]) != 0)
+			return true;
+		// We use the attacks of the opposite color to reverse direction
+		if((Bitboard.pawnAttacks[1-player.ordinal()][sq] & p[PieceType.PAWN.ordinal()]) != 0)
+			return true;
 		// Check diagonals
-		for(j=0; j<4; j++)
+		long sliders = p[PieceType.BISHOP.ordinal()] | p[PieceType.QUEEN.ordinal()];
+		if(sliders != 0 && (Bitboard.bishopAttacks(sq, occupied) & sliders) != 0)
+			return true;
+		// Check straights
+		sliders = p[PieceType.ROOK.ordinal()] | p[PieceType.QUEEN.ordinal()];
+		if(sliders != 0 && (Bitboard.rookAttacks(sq, occupied) & sliders) != 0)
+			return true;
+		return false;
+	}
+
+	/**
+	 * Finds all the pieces of the given player that attack a square.
+	 *
+	 * @param	player      the player whose pieces to find
+	 * @param	sq			the target square
+	 * @param	occupied	the bitboard of squares that block sliding pieces
+	 * @return	the bitboard of the attacking pieces
+	 */
+	public long attackersOf(Player player, int sq, long occupied)
+	{
+		long[] p = pieces[player.ordinal()];
+		return (Bitboard.knight[sq] & p[PieceType.KNIGHT.ordinal()])
+			| (Bitboard.king[sq] & p[PieceType.KING.ordinal()])
+			| (Bitboard.pawnAttacks[1-player.ordinal()][sq] & p[PieceType.PAWN.ordinal()])
+			| (Bitboard.bishopAttacks(sq, occupied) & (p[PieceType.BISHOP.ordinal()] | p[PieceType.QUEEN.ordinal()]))
+			| (Bitboard.rookAttacks(sq, occupied) & (p[PieceType.ROOK.ordinal()] | p[PieceType.QUEEN.ordinal()]));
+	}
+	
+	/**
+	 * Static exchange evaluation: the material that the active player wins
+	 * or loses if a move is made and then both players keep recapturing on
+	 * its target square with their least valuable piece, each being free to
+	 * stop when recapturing would lose material. Pieces that are uncovered
+	 * along the line of the exchange join in. Pins and checks are ignored.
+	 *
+	 * @param	move	a pseudo-legal packed move from this state
+	 * @return	the material balance of the exchange in centipawns
+	 */
+	public int see(int move)
+	{
+		int from = Move.source(move), to = Move.dest(move);
+		long fromBit = 1L << from;
+		long occupiedNow = occupied;
+		int queen = PieceType.QUEEN.ordinal();
+		long diagonalSliders = pieces[0][PieceType.BISHOP.ordinal()] | pieces[1][PieceType.BISHOP.ordinal()]
+				| pieces[0][queen] | pieces[1][queen];
+		long straightSliders = pieces[0][PieceType.ROOK.ordinal()] | pieces[1][PieceType.ROOK.ordinal()]
+				| pieces[0][queen] | pieces[1][queen];
+		int[] gain = seeGain;
+		// The first capture, and the piece that will stand on the square
+		int onSquare = Move.moved(move);
+		gain[0] = Move.isCapture(move) ? Eval.pieceValue[Move.captured(move)] : 0;
+		if(Move.isPromotion(move))
 		{
-			ray = Moves.bishop[j];
-			for(i=0; i<ray[sq].length; i++)
-			{
-				x = ray[sq][i];
-				p = this.getBoard()[x];
-				if(p != null)
-				{
-					if((p.getType() == PieceType.BISHOP || p.getType() == PieceType.QUEEN) && p.getPlayer() == player)
-						return true;
-					else // There is some other piece in the way in the ray
-						break;
-				}
-			}
+			onSquare = Move.promotion(move);
+			gain[0] += Eval.pieceValue[onSquare] - Eval.pieceValue[PAWN];
 		}
-		// Check straights		
-		for(j=0; j<4; j++)
+		if(Move.isEnPassant(move))
+			occupiedNow ^= 1L << (to + (activePlayer == Player.WHITE ? 8 : -8));
+		long attackers = attackersOf(Player.WHITE, to, occupiedNow) | attackersOf(Player.BLACK, to, occupiedNow);
+		int side = activePlayer.ordinal();
+		int d = 0;
+		while(true)
 		{
-			ray = Moves.rook[j];
-			for(i=0; i<ray[sq].length; i++)
+			d++;
+			// Score if the piece on the square is captured back
+			gain[d] = Eval.pieceValue[onSquare] - gain[d-1];
+			// Neither side can gain by going on
+			if(Math.max(-gain[d-1], gain[d]) < 0)
+				break;
+			// Remove the last attacker and look for pieces behind it
+			occupiedNow ^= fromBit;
+			attackers = (attackers | (Bitboard.bishopAttacks(to, occupiedNow) & diagonalSliders)
+					| (Bitboard.rookAttacks(to, occupiedNow) & straightSliders)) & occupiedNow;
+			// The least valuable piece of the other side recaptures
+			side = 1 - side;
+			fromBit = 0;
+			for(int type=0; type<6; type++)
 			{
-				x = ray[sq][i];
-				p = this.getBoard()[x];
-				if(p != null)
+				long candidates = attackers & pieces[side][type];
+				if(candidates != 0)
 				{
-					if((p.getType() == PieceType.ROOK || p.getType() == PieceType.QUEEN) && p.getPlayer() == player)
-						return true;
-					else // There is some other piece in the way in the ray
-						break;
+					fromBit = candidates & -candidates;
+					onSquare = type;
+					break;
 				}
 			}
+			if(fromBit == 0)
+				break;
 		}
-		// Check pawn
-		if(player == Player.WHITE)
-		{
-			for(i=0; i<Moves.pawnBX[sq].length; i++) // We use the move array of opposite color to reverse direction
-			{
-				x = Moves.pawnBX[sq][i];
-				p = this.getBoard()[x];
-				if(p != null && p.getType() == PieceType.PAWN && p.getPlayer() == player)
-					return true;
-			}
-		} // Black
-		else
-		{
-			for(i=0; i<Moves.pawnWX[sq].length; i++) // We use the move array of opposite color to reverse direction
-			{
-				x = Moves.pawnWX[sq][i];
-				p = this.getBoard()[x];
-				if(p != null && p.getType() == PieceType.PAWN && p.getPlayer() == player)
-					return true;
-			}
-		}			
-		return false;
+		// Each side only recaptures when it is worth it
+		while(--d > 0)
+			gain[d-1] = -Math.max(-gain[d-1], gain[d]);
+		return gain[0];
 	}
-	
+
 	/**
 	 * Equates two distinct instances of GameState to see if they
 	 * represent the same state of the board and game
@@ -797,20 +1530,13 @@ public class GameState
 	{	
 		GameState other = (GameState)obj;
 		// Check board positions
-		Piece p1, p2;
-		for(int i=0; i<64; i++)
+		for(int player=0; player<2; player++)
 		{
-			p1 = this.getBoard()[i];
-			p2 = other.getBoard()[i];
-			// First check if both are empty
-			if( p1 == null && p2 == null )
-				continue;
-			// Check if one is empty
-			if( (p1 == null) || (p2 == null)  ) 
-				return false;
-			// At this point there is a piece in both p1 and p2. Now lets see if it is the same piece
-			if( (p1.getPlayer() != p2.getPlayer()) || (p1.getType() != p2.getType()) )
-				return false;
+			for(int type=0; type<6; type++)
+			{
+				if( this.pieces[player][type] != other.pieces[player][type] )
+					return false;
+			}
 		}
 		
 		// Check castling rights
@@ -892,6 +1618,83 @@ public class GameState
         return board;
     }
 
+    /**
+     * Bitboard of the pieces of given color and given type.
+     * @param player    the owner of the pieces
+     * @param type      the type of the pieces
+     * @return the bitboard of the squares where the pieces are
+     */
+    public long getPieces(Player player, PieceType type) {
+        return pieces[player.ordinal()][type.ordinal()];
+    }
+
+    /**
+     * Bitboard of the pieces of given color and given type, indexed by the
+     * ordinals of <code>Player</code> and <code>PieceType</code>.
+     * @param player    the ordinal of the owner of the pieces
+     * @param type      the ordinal of the type of the pieces
+     * @return the bitboard of the squares where the pieces are
+     */
+    public long getPieces(int player, int type) {
+        return pieces[player][type];
+    }
+
+    /**
+     * Bitboard of the squares occupied by the given player.
+     * @param player    the owner of the pieces
+     * @return the bitboard of the squares occupied by the player
+     */
+    public long getOccupancy(Player player) {
+        return occupancy[player.ordinal()];
+    }
+
+    /**
+     * Bitboard of all the occupied squares on the board.
+     * @return the bitboard of the occupied squares
+     */
+    public long getOccupied() {
+        return occupied;
+    }
+
+    /**
+     * Sum of the values of the pieces of a player (see <code>Eval.pieceValue</code>).
+     * @param player the ordinal of the player
+     * @return the material of the player in centipawns
+     */
+    public int getMaterial(int player) {
+        return material[player];
+    }
+
+    /**
+     * Sum of the middlegame piece-square scores of the pieces of a player
+     * (see <code>Eval.piecePositionalScore</code>).
+     * @param player the ordinal of the player
+     * @return the positional score of the player in centipawns
+     */
+    public int getPositionalScore(int player) {
+        return positional[player];
+    }
+
+    /**
+     * Sum of the endgame piece-square scores of the pieces of a player
+     * (see <code>Eval.endgamePositionalScore</code>).
+     * @param player the ordinal of the player
+     * @return the endgame positional score of the player in centipawns
+     */
+    public int getEndgamePositionalScore(int player) {
+        return endgamePositional[player];
+    }
+
+    /**
+     * Number of pieces of a given type and player on the board.
+     * @param player the ordinal of the player
+     * @param type the ordinal of the piece type
+     * @return the number of such pieces
+     */
+    public int getPieceCount(int player, int type) {
+        return pieceCount[player][type];
+    }
+
     /**
      * Active player. The player whose turn it is next.
      * Whether WHITE or BLACK.
@@ -59,6 +59,37 @@ public class Move
     /** An enum that determines the type of castle */
     public enum Castle { WK, WQ, BK, BQ };
 
+    /*
+     * A move can also be packed into an int so that the search does not have
+     * to allocate Move objects. The lower 15 bits are laid out exactly like
+     * hash(), so the hash of the move is hash(move):
+     *
+     * bits  0-2    promotion (PieceType ordinal, or 0 if no promotion)
+     * bits  3-8    dest square
+     * bits  9-14   source square
+     * bits 15-17   captured PieceType ordinal + 1 (or 0 if no capture)
+     * bits 18-20   moved PieceType ordinal
+     * bit  21      en passant capture
+     * bit  22      castle (source and dest are those of the king)
+     * bit  23      double pawn push (sets the en passant square)
+     */
+    /** Flag of a packed move that is an en passant capture */
+    public static final int EN_PASSANT = 1 << 21;
+    /** Flag of a packed move that is a castle */
+    public static final int CASTLE = 1 << 22;
+    /** Flag of a packed move that is a double pawn push */
+    public static final int DOUBLE_PUSH = 1 << 23;
+    /** The types of castle, indexed by the dest square of the king */
+    private static final Castle[] castleTo = new Castle[64];
+
+    static
+    {
+        castleTo[62] = Castle.WK;
+        castleTo[58] = Castle.WQ;
+        castleTo[6] = Castle.BK;
+        castleTo[2] = Castle.BQ;
+    }
+
     /**
      * Constructs a Move object for a non-castle move.
      *
@@ -70,6 +101,25 @@ public class Move
 	 * @param newEP				the new en-passant square, or <code>-1</code> if there isn't one
      */
 	public Move(GameState state, byte source, byte dest, PieceType promotion, boolean viaEP, int newEP)
+    {
+        this(state, source, dest, promotion, viaEP, newEP, true);
+    }
+
+    /**
+     * Constructs a Move object for a non-castle move, optionally skipping the
+     * test of whether it leaves the moving player's king in check. Such a
+     * pseudo-legal move is never flagged <code>illegal</code>, so its legality
+     * must be checked with <code>GameState.isLegal()</code> before it is played.
+     *
+     * @param state             the board state before the move was made
+     * @param source            source square of move
+     * @param dest              target square of move
+     * @param promotion         type of promotion, or <code>null</code> if no promotion
+	 * @param viaEP				whether the move is an en-passant capture
+	 * @param newEP				the new en-passant square, or <code>-1</code> if there isn't one
+     * @param checkLegality     whether to make and unmake the move to set the <code>illegal</code> flag
+     */
+	Move(GameState state, byte source, byte dest, PieceType promotion, boolean viaEP, int newEP, boolean checkLegality)
     {
         // Set fields
 		this.source = source;
@@ -98,6 +148,8 @@ public class Move
             this.toggleBK = true;
         if(state.canCastleBlackQueenside() && (source == 4 || source == 0 || dest == 0))
             this.toggleBQ = true;
+        if(!checkLegality)
+            return;
         // Look for check status
         state.doMove(this);
         /*if(state.isInCheck(state.getActivePlayer()))
@@ -219,6 +271,186 @@ public class Move
 
     }
 
+    /**
+     * Packs a move into an int
+     *
+     * @param source        source square of the move
+     * @param dest          target square of the move
+     * @param promotion     PieceType ordinal of the promotion, or 0 if no promotion
+     * @param captured      PieceType ordinal of the captured piece, or -1 if no capture
+     * @param moved         PieceType ordinal of the moving piece
+     * @param flags         any of <code>EN_PASSANT</code>, <code>CASTLE</code> and <code>DOUBLE_PUSH</code>
+     * @return  the packed move
+     */
+    public static int encode(int source, int dest, int promotion, int captured, int moved, int flags)
+    {
+        return (source << 9) | (dest << 3) | promotion | ((captured+1) << 15) | (moved << 18) | flags;
+    }
+
+    /**
+     * Packs this move into an int
+     * @return  the packed move
+     * @see     encode(int, int, int, int, int, int)
+     */
+    public int encode()
+    {
+        int flags = 0;
+        if(viaEP)
+            flags |= EN_PASSANT;
+        if(castle != null)
+            flags |= CASTLE;
+        if(newEP != -1)
+            flags |= DOUBLE_PUSH;
+        return encode(source, dest, promotion == null ? 0 : promotion.ordinal(),
+                capturedPiece == null ? -1 : capturedPiece.getType().ordinal(),
+                movedPiece.getType().ordinal(), flags);
+    }
+
+    /**
+     * Unpacks a move into a Move object
+     *
+     * @param state     the board state before the move is made
+     * @param move      the packed move
+     * @return  the (pseudo-legal) Move object
+     */
+    public static Move valueOf(GameState state, int move)
+    {
+        if(isCastle(move))
+            return new Move(state, castleTo[dest(move)]);
+        int source = source(move), dest = dest(move);
+        return new Move(state, (byte)source, (byte)dest, isPromotion(move) ? PieceType.values()[promotion(move)] : null,
+                isEnPassant(move), isDoublePush(move) ? (source+dest)/2 : -1, false);
+    }
+
+    /** @return the source square of a packed move */
+    public static int source(int move)
+    {
+        return (move >>> 9) & 63;
+    }
+
+    /** @return the dest square of a packed move */
+    public static int dest(int move)
+    {
+        return (move >>> 3) & 63;
+    }
+
+    /** @return the PieceType ordinal of the promotion of a packed move, or 0 if it is not a promotion */
+    public static int promotion(int move)
+    {
+        return move & 7;
+    }
+
+    /** @return the PieceType ordinal of the piece captured by a packed move, or -1 if it is not a capture */
+    public static int captured(int move)
+    {
+        return ((move >>> 15) & 7) - 1;
+    }
+
+    /** @return the PieceType ordinal of the piece moved by a packed move */
+    public static int moved(int move)
+    {
+        return (move >>> 18) & 7;
+    }
+
+    /** @return whether a packed move is a capture */
+    public static boolean isCapture(int move)
+    {
+        return (move & (7 << 15)) != 0;
+    }
+
+    /** @return whether a packed move is a promotion */
+    public static boolean isPromotion(int move)
+    {
+        return (move & 7) != 0;
+    }
+
+    /** @return whether a packed move is a castle */
+    public static boolean isCastle(int move)
+    {
+        return (move & CASTLE) != 0;
+    }
+
+    /** @return whether a packed move is an en passant capture */
+    public static boolean isEnPassant(int move)
+    {
+        return (move & EN_PASSANT) != 0;
+    }
+
+    /** @return whether a packed move is a double pawn push */
+    public static boolean isDoublePush(int move)
+    {
+        return (move & DOUBLE_PUSH) != 0;
+    }
+
+    /**
+     * Gets the 16-bit hash of a packed move
+     * @param   move    the packed move
+     * @return  the same value as hash() of the unpacked move
+     */
+    public static short hash(int move)
+    {
+        return (short)(move & 0x7FFF);
+    }
+
+    /**
+     * Converts a packed move into co-ordinate notation
+     * @param   move    the packed move
+     * @return  the move in co-ordinate notation
+     */
+    public static String toString(int move)
+    {
+        return hashToString(hash(move));
+    }
+
+    /**
+     * Checks whether a packed legal move is the one written in Standard
+     * Algebraic Notation (as in the <code>bm</code> operations of EPD). Check
+     * and annotation symbols are ignored, and so is a missing or superfluous
+     * disambiguation, since the move is known to be legal. Co-ordinate
+     * notation is accepted too.
+     *
+     * @param   move    the packed move
+     * @param   san     the move in SAN
+     * @return  <code>true</code> if the SAN describes the move
+     */
+    public static boolean matchesSAN(int move, String san)
+    {
+        san = san.replaceAll("e\\.p\\.|[x:=+#!?]", "");
+        if(san.equalsIgnoreCase(toString(move)))
+            return true;
+        if(san.equals("O-O-O") || san.equals("0-0-0"))
+            return isCastle(move) && dest(move) < source(move);
+        if(san.equals("O-O") || san.equals("0-0"))
+            return isCastle(move) && dest(move) > source(move);
+        // Type of the moving piece
+        int type = PieceType.PAWN.ordinal();
+        if(san.length() > 0 && "NBRQK".indexOf(san.charAt(0)) >= 0)
+        {
+            type = "PNBRQK".indexOf(san.charAt(0));
+            san = san.substring(1);
+        }
+        // Promotion
+        int promotion = 0;
+        if(san.length() > 0 && "NBRQ".indexOf(san.charAt(san.length()-1)) >= 0)
+        {
+            promotion = "PNBRQ".indexOf(san.charAt(san.length()-1));
+            san = san.substring(0, san.length()-1);
+        }
+        if(san.length() < 2 || type != moved(move) || promotion != promotion(move))
+            return false;
+        // Destination, then whatever is left disambiguates the source
+        String dest = Moves.toCoOrdinate((byte)dest(move));
+        if(!san.endsWith(dest))
+            return false;
+        String source = Moves.toCoOrdinate((byte)source(move));
+        for(char c : san.substring(0, san.length()-2).toCharArray())
+        {
+            if(source.indexOf(c) < 0)
+                return false;
+        }
+        return true;
+    }
+
 	/**
 	 * Converts the Move object into co-ordinate notation
 	 *
@@ -261,7 +493,8 @@ public class Move
 
     /**
      * Indicates whether the move is legal as far as exposing the moving player's
-     * king to check goes.
+     * king to check goes. Moves from <code>GameState.generatePseudoLegalMoves()</code>
+     * have not been tested yet, so this is always <code>true</code> for them.
      *
      * The move should be legal by the rules of chess in terms
      * of the piece moving from source to destination square because the move
@@ -277,153 +510,6 @@ public class Move
         return !illegal;
     }
 
-    /**
-     * Get the most efficient move that can capture at square x. The most
-     * efficient maeans that it will find the least valuable attacker to
-     * make the capture. Note that this method does not take into account
-     * (1) castling rights - because in recapture calculations we will never
-     * go down a variation where castling is the last thing we do
-     * (2) promotion - because if a pawn can capture on the last rank and it is
-     * recaptured, we cant to consider that we recaptured a 'pawn' and not a
-     * 'queen'.
-     * (3) en passant info - because in exchange evaluation this is never
-     * required.
-     * @param state     the original state of the board
-     * @param x         the square to capture at
-     * @return  the best Move if found, or else null
-     */
-    public static Move getBestCapture(GameState state, byte x)
-    {
-        Move move; Piece p;
-        Piece[] board = state.getBoard();
-        Player player = state.getActivePlayer();
-        // If there is a no piece or a friendly piece on the target square,
-        //  there can't be any move to capture at target
-        if(board[x] == null || board[x].getPlayer() == player)
-            return null;
-        // First find a pawn
-        switch(player)
-        {
-            case WHITE:
-                // We have to find a white pawn one step diagonally to the bottom
-                // rank. For that, we use the attack vector of black pawns (southwards)
-                for(byte s : Moves.pawnBX[x])
-                {
-                    p = board[s];
-                    if(p==null)
-                        continue;
-                    if(p.getType() == PieceType.PAWN && p.getPlayer() == Player.WHITE)
-                    {
-                        move = new Move(state, s, x);
-                        if(move.isLegal())
-                            return move;
-                    }
-                }
-                break;
-            case BLACK:
-                // We have to find a black pawn one step diagonally to the top
-                // rank. For that, we use the attack vector of white pawns (northwards)
-                for(byte s : Moves.pawnWX[x])
-                {
-                    p = board[s];
-                    if(p==null)
-                        continue;
-                    if(p.getType() == PieceType.PAWN && p.getPlayer() == Player.BLACK)
-                    {
-                        move = new Move(state, s, x);
-                        if(move.isLegal())
-                            return move;
-                    }
-                }
-                break;
-        }
-        // Now look for a knight
-        for(byte s : Moves.knight[x])
-        {
-            p = board[s];
-            if(p==null)
-                continue;
-            if(p.getType() == PieceType.KNIGHT && p.getPlayer() == player)
-            {
-                move = new Move(state, s, x);
-                if(move.isLegal())
-                    return move;
-            }
-        }
-        // Now look for a bishop
-        for(byte[][] ray : Moves.bishop)
-        {
-            for(byte s : ray[x])
-            {
-                p = board[s];
-                if(p == null)
-                    continue;
-                if(p.getType() == PieceType.BISHOP && p.getPlayer() == player)
-                {
-                    move = new Move(state, s, x);
-                    if(move.isLegal())
-                        return move;
-                }
-                // At this point p is not null and either p is not the required piece,
-                // or p is required piece but move is not legal, so the ray is blocked
-                break;
-            }
-        }
-        // Now look for a rook
-        for(byte[][] ray : Moves.rook)
-        {
-            for(byte s : ray[x])
-            {
-                p = board[s];
-                if(p == null)
-                    continue;
-                if(p.getType() == PieceType.ROOK && p.getPlayer() == player)
-                {
-                    move = new Move(state, s, x);
-                    if(move.isLegal())
-                        return move;
-                }
-                // At this point p is not null and either p is not the required piece,
-                // or p is required piece but move is not legal, so the ray is blocked
-                break;
-            }
-        }
-        // Now look for a queen
-        for(byte[][] ray : Moves.queen)
-        {
-            for(byte s : ray[x])
-            {
-                p = board[s];
-                if(p == null)
-                    continue;
-                if(p.getType() == PieceType.QUEEN && p.getPlayer() == player)
-                {
-                    move = new Move(state, s, x);
-                    if(move.isLegal())
-                        return move;
-                }
-                // At this point p is not null and either p is not the required piece,
-                // or p is required piece but move is not legal, so the ray is blocked
-                break;
-            }
-        }
-        // Finally look for a king
-        for(byte s : Moves.king[x])
-        {
-            p = board[s];
-            if(p==null)
-                continue;
-            if(p.getType() == PieceType.KING && p.getPlayer() == player)
-            {
-                move = new Move(state, s, x);
-                if(move.isLegal())
-                        return move;
-            }
-        }
-        // If we havn't returned yet it means no good attacker was found
-        return null;
-    }
-
     /**
      * Parses a move in Standard Algebraic notation and returns a Move object.
      *
@@ -19,37 +19,41 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 package net.sourceforge.frittle;
 
 /**
- * A set of moves generated by the move generator is implemented as a
- * singly linked list. Operations are available to select only certain moves and
- * re-order the moves in best-first fashion.
+ * A set of moves generated by the move generator is implemented as an
+ * array that grows when it is full. Operations are available to select only
+ * certain moves and re-order the moves in best-first fashion.
  *
  * This class does not make use of the Java Collections interface for
- * performance purposes.
+ * performance purposes. The search does not use it at all, and works on
+ * packed int moves instead (see <code>Move.encode()</code>).
  */
 public class MoveList implements Iterable<Move>
 {
-    /** The head of the linked list */
-    private MoveNode first;
+    /** The moves in the list */
+    private Move[] moves;
 
-    /** The tail of the linked list */
-    private MoveNode last;
+    /** The number of moves in the list */
+    private int size;
+
+    /**
+     * Creates an empty list
+     */
+    public MoveList()
+    {
+        moves = new Move[32];
+    }
 
     /**
      * Add a move to the list. Illegal moves are not added
      * @param   move    the Move to add to the list
-     * @param   state   the GameState before the move is attempted
      */
     public void add(Move move)
     {
         if(move.illegal)
             return;
-        MoveNode node = new MoveNode(move);
-        if(first == null)  // List is empty
-            first = node;  // Set first node
-        else
-            last.next = node; // Otherwise chain the node at the end
-
-        last = node;  // Last points to the last added node
+        if(size == moves.length)
+            grow(size+1);
+        moves[size++] = move;
     }
 
     /**
@@ -59,23 +63,33 @@ public class MoveList implements Iterable<Move>
      */
     public MoveList addAll(MoveList list)
     {
-        if(first == null) // If this is empty, result is 'list'
-            first = list.first;    // set first node
-        else
-            last.next = list.first; // chain the two lists together
-
-        if(list.last != null)      // second list is not empty
-            last = list.last;      // new last node
+        if(size + list.size > moves.length)
+            grow(size + list.size);
+        System.arraycopy(list.moves, 0, moves, size, list.size);
+        size += list.size;
         return this;
     }
 
+    /**
+     * Makes room for at least the given number of moves
+     * @param   capacity    the number of moves the list must be able to hold
+     */
+    private void grow(int capacity)
+    {
+        Move[] newMoves = new Move[Math.max(capacity, moves.length*2)];
+        System.arraycopy(moves, 0, newMoves, 0, size);
+        moves = newMoves;
+    }
+
     /**
      * Deletes all elements in the list
      */
     public void clear()
     {
-        first = null;
-        last = null;
+        // Release references so that the moves can be garbage collected
+        for(int i=0; i<size; i++)
+            moves[i] = null;
+        size = 0;
     }
 
     /**
@@ -84,7 +98,7 @@ public class MoveList implements Iterable<Move>
      */
     public Move first()
     {
-        return first.move;
+        return moves[0];
     }
 
     /**
@@ -93,7 +107,26 @@ public class MoveList implements Iterable<Move>
      */
     public Move last()
     {
-        return last.move;
+        return moves[size-1];
+    }
+
+    /**
+     * Gets the move at the given position in the list
+     * @param   index   the position of the move [0 to size()-1]
+     * @return  the Move at that position
+     */
+    public Move get(int index)
+    {
+        return moves[index];
+    }
+
+    /**
+     * The number of moves in the list
+     * @return  the number of moves
+     */
+    public int size()
+    {
+        return size;
     }
 
     /**
@@ -102,7 +135,7 @@ public class MoveList implements Iterable<Move>
      */
     public boolean isEmpty()
     {
-        return (first==null);
+        return (size==0);
     }
 
     /**
@@ -111,7 +144,7 @@ public class MoveList implements Iterable<Move>
      */
     public boolean hasMoves()
     {
-        return (first!=null);
+        return (size!=0);
     }
 
     /**
@@ -120,58 +153,30 @@ public class MoveList implements Iterable<Move>
      */
     public java.util.Iterator<Move> iterator()
     {
-        return new MoveIterator(first);
+        return new MoveIterator();
     }
 
-}
-
-/**
- * A singly linked list node.
- */
-class MoveNode
-{
-    /** Move stored in the node */
-    Move move;
-
-    /** Reference to next node in the list, or null if the node is terminal */
-    MoveNode next;
-
     /**
-     * Construct a node from a Move object
-     * @param   move    the Move object to store in the node
+     * A Move iterator
      */
-    MoveNode(Move move)
-    {
-        this.move = move;
-    }
-}
-
-/**
- * A Move iterator
- */
-class MoveIterator implements java.util.Iterator<Move>
-{
-    MoveNode node;
-
-    MoveIterator(MoveNode node)
-    {
-        this.node = node;
-    }
-
-    public boolean hasNext()
-    {
-        return (node != null);
-    }
-
-    public Move next()
-    {
-        Move move = node.move;
-        node = node.next;
-        return move;
-    }
-
-    public void remove()
+    private class MoveIterator implements java.util.Iterator<Move>
     {
-        throw new UnsupportedOperationException();
+        /** The position of the next move */
+        int index;
+
+        public boolean hasNext()
+        {
+            return (index < size);
+        }
+
+        public Move next()
+        {
+            return moves[index++];
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
     }
 }
@@ -18,27 +18,97 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 
 package net.sourceforge.frittle;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
 import br.com.vinyanalista.jchessengine.XBoard;
 
 /**
  * This class is used to conduct a performance test on the move generation
  * process.
+ *
+ * The test can run on several threads of a fork/join pool. The subtree of
+ * each root move is a task that forks a subtask for each reply, down to
+ * <code>SPLIT_DEPTH</code> plies above the leaves, below which it crawls
+ * on its own. Every task works on its own copy of the state, and the idle
+ * threads steal the subtasks of the busy ones, so the work stays balanced
+ * however few root moves there are. In divide mode the count of each
+ * root move is printed as well, which helps to find the move generation
+ * bug when a total does not match a known value.
+ *
+ * An optional {@link PerftCache} lets the test count each subtree that is
+ * reached by transposition only once. Cached subtrees only give their
+ * number of leaf nodes, so the other statistics are not printed then.
+ *
+ * In bulk counting mode only the leaf nodes are counted too: the moves of
+ * the last ply are counted as soon as they are known to be legal, instead
+ * of making and unmaking each of them to collect the statistics.
  */
 public class Perft {
+    /** Subtrees of at most this many plies are crawled by a single task */
+    private static final int SPLIT_DEPTH = 4;
+
     private long nodes;
     private long captures;
     private long checks;
     private long enPassant;
     private long castles;
     private long promotions;
+    /** The number of lookups in the cache */
+    private long cacheProbes;
+    /** The number of lookups that found their subtree in the cache */
+    private long cacheHits;
+    /** The cache of subtree counts, or <code>null</code> not to use one */
+    private PerftCache cache;
+    /** Whether the last ply is counted without making its moves */
+    private boolean bulkCounting;
     private GameState state;
+    /** The moves of every ply of the crawl, one block after the other */
+    private int[] moveStack;
     
     public Perft(GameState state)
     {
         this.state = state;
     }
 
+    /**
+     * Sets the cache of subtree counts to use from the next test on.
+     *
+     * @param cache     the cache, or <code>null</code> not to use one
+     */
+    public void setCache(PerftCache cache)
+    {
+        this.cache = cache;
+    }
+
+    /**
+     * Sets whether the last ply should be counted without making its moves,
+     * which is much faster but gives no statistics besides the node count.
+     *
+     * @param bulkCounting  <code>true</code> for bulk counting, <code>false</code>
+     *                      to collect all the statistics
+     */
+    public void setBulkCounting(boolean bulkCounting)
+    {
+        this.bulkCounting = bulkCounting;
+    }
+
     public void test(int depth)
+    {
+        test(depth, 1, false);
+    }
+
+    /**
+     * Counts the leaf nodes at the given depth and prints the totals.
+     *
+     * @param depth     the depth of the leaf nodes
+     * @param threads   the number of threads to crawl with
+     * @param divide    whether to print the count of each root move too
+     */
+    public void test(int depth, int threads, boolean divide)
     {
         nodes = 0;
         checks = 0;
@@ -46,16 +116,205 @@ public class Perft {
         enPassant = 0;
         castles = 0;
         promotions = 0;
-        long start = new java.util.Date().getTime();
-        crawl(state, depth);
-        long end = new java.util.Date().getTime();
-        XBoard.send("nodes="+ nodes + ", captures=" + captures + ", ep=" + enPassant 
-             + ", castles=" + castles + ", promotions=" + promotions + ", checks=" + checks);
+        cacheProbes = 0;
+        cacheHits = 0;
+        long start = System.currentTimeMillis();
+        if(depth > 0)
+        {
+            ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+            try
+            {
+                crawlInParallel(pool, depth, divide);
+            }
+            catch(InterruptedException e)
+            {
+                // Keep the interrupt for the caller and report no counts
+                Thread.currentThread().interrupt();
+                XBoard.tellUserError("Perft interrupted");
+                return;
+            }
+            finally
+            {
+                pool.shutdownNow();
+            }
+        }
+        long end = System.currentTimeMillis();
+        if(cache == null && !bulkCounting)
+            XBoard.send("nodes="+ nodes + ", captures=" + captures + ", ep=" + enPassant 
+                 + ", castles=" + castles + ", promotions=" + promotions + ", checks=" + checks);
+        else if(cache == null)
+            XBoard.send("nodes=" + nodes);
+        else
+            XBoard.send("nodes=" + nodes + ", cache hits=" + cacheHits + " of " + cacheProbes + " probes ["
+                 + (cacheProbes == 0 ? 0 : 100*cacheHits/cacheProbes) + "% hit rate], cache size="
+                 + cache.getMegabytes() + "MB");
         float time = (float)(end-start)/1000;
         XBoard.send("time=" + time + ", nps=" + (float)nodes/time);
     }
 
-    private void crawl(GameState state, int depth)
+    /**
+     * The number of leaf nodes counted by the last test
+     *
+     * @return  the number of nodes
+     */
+    public long getNodes()
+    {
+        return nodes;
+    }
+
+    /**
+     * Runs a task for the subtree of each root move on the pool and adds up
+     * their counts into this object once all of them are done, so that an
+     * interrupted test leaves the counts at zero.
+     *
+     * @param pool      the pool that runs the tasks
+     * @param depth     the depth of the leaf nodes (at least 1)
+     * @param divide    whether to print the count of each root move
+     * @exception InterruptedException  if the test is interrupted
+     */
+    private void crawlInParallel(ForkJoinPool pool, int depth, boolean divide) throws InterruptedException
+    {
+        int[] rootMoves = legalMoves(state);
+        List<Task> tasks = new ArrayList<Task>();
+        for(int move : rootMoves)
+        {
+            Task task = new Task(state, move, depth, cache, bulkCounting);
+            pool.execute(task);
+            tasks.add(task);
+        }
+        Perft total = new Perft(state);
+        for(int i=0; i<rootMoves.length; i++)
+        {
+            Perft counts;
+            try
+            {
+                counts = tasks.get(i).get();
+            }
+            catch(ExecutionException e)
+            {
+                throw new RuntimeException(e.getCause());
+            }
+            total.add(counts);
+            if(divide)
+                XBoard.send(Move.toString(rootMoves[i]) + ": " + counts.nodes);
+        }
+        add(total);
+    }
+
+    /**
+     * Adds the counts of another test to the counts of this one
+     *
+     * @param counts    the counts to add
+     */
+    private void add(Perft counts)
+    {
+        nodes += counts.nodes;
+        captures += counts.captures;
+        checks += counts.checks;
+        enPassant += counts.enPassant;
+        castles += counts.castles;
+        promotions += counts.promotions;
+        cacheProbes += counts.cacheProbes;
+        cacheHits += counts.cacheHits;
+    }
+
+    /**
+     * Generates the legal moves of a state
+     *
+     * @param state     the state to generate the moves of
+     * @return  the packed legal moves
+     */
+    private static int[] legalMoves(GameState state)
+    {
+        int[] moves = new int[GameState.MAX_MOVES];
+        int count = 0;
+        int last = state.generatePseudoLegalMoves(moves, 0);
+        for(int i=0; i<last; i++)
+        {
+            if(state.isLegal(moves[i]))
+                moves[count++] = moves[i];
+        }
+        int[] legal = new int[count];
+        System.arraycopy(moves, 0, legal, 0, count);
+        return legal;
+    }
+
+    /**
+     * A task that counts the leaf nodes below one move, on its own copy of
+     * the state. Above <code>SPLIT_DEPTH</code> it forks a subtask for each
+     * reply to the move instead of crawling the subtree itself.
+     */
+    private static class Task extends RecursiveTask<Perft>
+    {
+        /** A private copy of the state the move is made from */
+        private final GameState state;
+        /** The move whose subtree is counted */
+        private final int move;
+        /** The depth of the leaf nodes, counting the move */
+        private final int depth;
+        /** The cache shared by all the tasks, or <code>null</code> */
+        private final PerftCache cache;
+        /** Whether the last ply is counted without making its moves */
+        private final boolean bulkCounting;
+
+        Task(GameState state, int move, int depth, PerftCache cache, boolean bulkCounting)
+        {
+            this.state = new GameState(state);
+            this.move = move;
+            this.depth = depth;
+            this.cache = cache;
+            this.bulkCounting = bulkCounting;
+        }
+
+        protected Perft compute()
+        {
+            Perft counts = new Perft(state);
+            counts.cache = cache;
+            counts.bulkCounting = bulkCounting;
+            // An aborted test throws its counts away, so stop splitting
+            if(getPool().isShutdown())
+                return counts;
+            if(depth <= SPLIT_DEPTH)
+            {
+                counts.moveStack = new int[depth*GameState.MAX_MOVES];
+                counts.visit(state, move, depth, 0);
+                return counts;
+            }
+            // The subtree is looked up and stored like crawl() does
+            state.doMove(move);
+            long hash = 0;
+            if(cache != null)
+            {
+                hash = state.hash();
+                counts.cacheProbes++;
+                long count = cache.probe(hash, depth-1);
+                if(count != PerftCache.NO_ENTRY)
+                {
+                    counts.cacheHits++;
+                    counts.nodes = count;
+                    return counts;
+                }
+            }
+            List<Task> replies = new ArrayList<Task>();
+            for(int reply : legalMoves(state))
+                replies.add(new Task(state, reply, depth-1, cache, bulkCounting));
+            invokeAll(replies);
+            for(Task reply : replies)
+                counts.add(reply.join());
+            if(cache != null)
+                cache.store(hash, depth-1, counts.nodes);
+            return counts;
+        }
+    }
+
+    /**
+     * Counts the leaf nodes below the given state
+     *
+     * @param state     the state to crawl from
+     * @param depth     the number of plies left to crawl
+     * @param first     the index in <code>moveStack</code> where the moves of this ply start
+     */
+    private void crawl(GameState state, int depth, int first)
     {
         if(depth == 0)
         {
@@ -63,29 +322,71 @@ public class Perft {
         }
         else
         {
-            MoveList moves = state.generateMoves();
-            for(Move move : moves)
+            // Subtrees of one ply are cheaper to count than to look up
+            long hash = 0, before = nodes;
+            if(cache != null && depth > 1)
             {
-                state.doMove(move);
-                //Frittle.write(move.toString());
-                //Frittle.write(state.toFEN());
-                if(depth == 1)
+                hash = state.hash();
+                cacheProbes++;
+                long count = cache.probe(hash, depth);
+                if(count != PerftCache.NO_ENTRY)
                 {
-                    nodes++;
-                    if(move.capturedPiece != null)
-                        captures++;
-                    if(move.viaEP)
-                        enPassant++;
-                    if(move.castle != null)
-                        castles++;
-                    if(move.promotion != null)
-                        promotions++;
-                    if(state.isInCheck(state.getActivePlayer()))
-                        checks++;
+                    cacheHits++;
+                    nodes += count;
+                    return;
                 }
-                crawl(state,depth-1);
-                state.undoMove(move);
             }
+            int last = state.generatePseudoLegalMoves(moveStack, first);
+            if(depth == 1 && bulkCounting)
+            {
+                // Every legal move is a leaf node
+                for(int i=first; i<last; i++)
+                {
+                    if(state.isLegal(moveStack[i]))
+                        nodes++;
+                }
+                return;
+            }
+            for(int i=first; i<last; i++)
+            {
+                int move = moveStack[i];
+                if(!state.isLegal(move))
+                    continue;
+                visit(state, move, depth, last);
+            }
+            if(cache != null && depth > 1)
+                cache.store(hash, depth, nodes - before);
+        }
+    }
+
+    /**
+     * Makes a legal move, counts the leaf nodes below it and unmakes it
+     *
+     * @param state     the state to crawl from
+     * @param move      the legal move to make
+     * @param depth     the number of plies left to crawl, including the move
+     * @param first     the index in <code>moveStack</code> where the moves of the next ply start
+     */
+    private void visit(GameState state, int move, int depth, int first)
+    {
+        state.doMove(move);
+        //Frittle.write(Move.toString(move));
+        //Frittle.write(state.toFEN());
+        if(depth == 1)
+        {
+            nodes++;
+            if(Move.isCapture(move))
+                captures++;
+            if(Move.isEnPassant(move))
+                enPassant++;
+            if(Move.isCastle(move))
+                castles++;
+            if(Move.isPromotion(move))
+                promotions++;
+            if(state.isInCheck(state.getActivePlayer()))
+                checks++;
         }
+        crawl(state,depth-1,first);
+        state.undoMove(move);
     }
 }
@@ -0,0 +1,100 @@
+/*
+Frittle - Chess Engine for WinBoard/XBoard [http://frittle.sourceforge.net]
+Copyright (C) 2009 Rohan Padhye <verminox@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package net.sourceforge.frittle;
+
+/**
+ * A cache of the leaf node counts of subtrees crawled by {@link Perft},
+ * keyed by the hash of the root of the subtree and its depth. Deep perft
+ * tests reach the same positions through different move orders, and the
+ * cache lets them count each such subtree only once.
+ *
+ * Like the transposition table of the search, each entry is a count and
+ * the hash XORed with it, so that the threads of a perft test can share
+ * the cache without locking: an entry torn by concurrent writes simply
+ * does not match. The count is stored with the depth in its top byte.
+ * A new entry always replaces the old one.
+ */
+public class PerftCache
+{
+    /** The value returned by <code>probe()</code> when no entry matches */
+    public static final long NO_ENTRY = -1;
+
+    /**
+     * The entries. The <code>long</code> at <code>2*i</code> is the hash
+     * XORed with the data of entry <i>i</i>, and the one at <code>2*i+1</code>
+     * is the data: the count in the low 56 bits and the depth above them.
+     */
+    private long[] table;
+    /** The mask that maps a hash to an entry */
+    private int mask;
+
+    /**
+     * Construct a new PerftCache using about the given memory.
+     *
+     * @param   megabytes   the memory to use (rounded down to a power of two)
+     */
+    public PerftCache(int megabytes)
+    {
+        int entries = Integer.highestOneBit(Math.min(Math.max(1, megabytes), 1024)) * (1024 * 1024 / 16);
+        this.table = new long[2*entries];
+        this.mask = entries - 1;
+    }
+
+    /**
+     * Looks up the leaf node count of a subtree.
+     *
+     * @param   hash    the hash of the root of the subtree
+     * @param   depth   the depth of the subtree
+     * @return  the number of leaf nodes, or <code>NO_ENTRY</code> if it is
+     *          not in the cache
+     */
+    public long probe(long hash, int depth)
+    {
+        int index = 2 * ((int)hash & mask);
+        long data = table[index+1];
+        if((table[index] ^ data) != hash || (int)(data >>> 56) != depth)
+            return NO_ENTRY;
+        return data & 0xFFFFFFFFFFFFFFL;
+    }
+
+    /**
+     * Stores the leaf node count of a subtree.
+     *
+     * @param   hash    the hash of the root of the subtree
+     * @param   depth   the depth of the subtree [1-255]
+     * @param   nodes   the number of leaf nodes
+     */
+    public void store(long hash, int depth, long nodes)
+    {
+        int index = 2 * ((int)hash & mask);
+        long data = nodes | ((long)depth << 56);
+        table[index+1] = data;
+        table[index] = hash ^ data;
+    }
+
+    /**
+     * Get the memory used by the cache.
+     *
+     * @return  the size of the cache in megabytes
+     */
+    public int getMegabytes()
+    {
+        return (int)((long)table.length * 8 / (1024 * 1024));
+    }
+}
@@ -33,6 +33,23 @@ public class Piece
 	 * The type of the piece.
 	 */
 	protected PieceType type;
+
+	/**
+	 * Shared instances of every piece, accessed like [Player][PieceType].
+	 * The board of a GameState only holds these instances, so they must
+	 * never be modified.
+	 */
+	private static final Piece[][] instances = new Piece[2][6];
+
+	// Initialize shared instances
+	static
+	{
+		for(Player player : Player.values())
+		{
+			for(PieceType type : PieceType.values())
+				instances[player.ordinal()][type.ordinal()] = new Piece(type, player);
+		}
+	}
 	
 	/**
 	 * Creates a new piece on the board of given color
@@ -46,6 +63,31 @@ public class Piece
 		this.type = type;
 		this.player = player;
 	}
+
+	/**
+	 * Gets the shared instance of the piece of given color and given type.
+	 * Unlike the constructor, this does not allocate a new object.
+	 *
+	 * @param type		the type of the piece
+	 * @param player	the owner of the piece
+	 * @return			the shared Piece object
+	 */
+	public static Piece valueOf(PieceType type, Player player)
+	{
+		return instances[player.ordinal()][type.ordinal()];
+	}
+
+	/**
+	 * Gets the shared instance of the piece of given color and given type.
+	 *
+	 * @param type		the ordinal of the type of the piece
+	 * @param player	the ordinal of the owner of the piece
+	 * @return			the shared Piece object
+	 */
+	public static Piece valueOf(int type, int player)
+	{
+		return instances[player][type];
+	}
 	
 	/**
 	 * @return 	the player who owns the piece
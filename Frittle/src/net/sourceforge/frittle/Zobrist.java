@@ -21,29 +21,134 @@ package net.sourceforge.frittle;
 /**
  * This static class provides a method of generating a 64-bit hash code
  * for a GameState object.
+ *
+ * The hash of a position is the XOR of one bitString for each piece on
+ * its square, plus one bitString for each castling right, for the en passant
+ * square and for black to move. Because XOR is its own inverse, a GameState
+ * can keep its hash up to date while making and unmaking moves by XORing
+ * only the bitStrings that changed (see the accessors below).
+ *
+ * The bitStrings are generated from a fixed seed, so the hash of a position
+ * is the same in every run of the engine. This allows hash keyed data to be
+ * saved by one process and used by another. The seed can be changed with the
+ * <code>frittle.zobrist.seed</code> system property, in which case such data
+ * must have been saved with the same seed.
  */
 public class Zobrist
 {
 	/**
-	 * The set of random integers (bit strings) for the hash function
+	 * The set of random integers (bit strings) for the hash function.
+	 * Layout:
+	 * 0-767 = piece of [Player][PieceType] on a square
+	 * 768 = black to move
+	 * 769-772 = castling rights (WK, WQ, BK, BQ)
+	 * 773-836 = en passant square
 	 */
 	private static long  bitStrings[];
+
+	/** Index of the first en passant bitString */
+	private static final int EN_PASSANT = 773;
+
+	/** The seed used when none is given by the system property */
+	public static final long DEFAULT_SEED = 0x46726974746C65L; // "Frittle"
+
+	/** The seed from which the bitStrings were generated */
+	private static final long seed;
+
+	/** A checksum of the whole set of bitStrings */
+	private static final long checksum;
 	
 	// Initialize bitstrings
 	static
 	{
-		bitStrings = new long [907];
-		java.util.Random random = new java.util.Random();
-		for(int i=0; i<907; i++)
+		seed = Long.getLong("frittle.zobrist.seed", DEFAULT_SEED).longValue();
+		bitStrings = new long [837];
+		// The algorithm of java.util.Random is fully specified, so the same
+		// seed produces the same bitStrings on every JVM
+		java.util.Random random = new java.util.Random(seed);
+		long sum = 0;
+		for(int i=0; i<837; i++)
 		{
 			bitStrings[i] = random.nextLong();
+			// Rotate before adding so that the order of the keys matters
+			sum = Long.rotateLeft(sum, 7) ^ bitStrings[i];
 		}
+		checksum = sum;
+	}
+
+	/**
+	 * The seed from which the bitStrings were generated.
+	 *
+	 * @return	the seed
+	 */
+	public static long getSeed()
+	{
+		return seed;
+	}
+
+	/**
+	 * A checksum of the set of bitStrings. Data keyed by hashes (such as a
+	 * saved transposition table) can store this value to detect that it was
+	 * hashed with a different set of bitStrings.
+	 *
+	 * @return	the checksum of the bitStrings
+	 */
+	public static long checksum()
+	{
+		return checksum;
+	}
+
+	/**
+	 * The bitString of a piece on a square.
+	 *
+	 * @param	player		the ordinal of the owner of the piece
+	 * @param	type		the ordinal of the type of the piece
+	 * @param	sq			the square of the piece
+	 * @return	the bitString
+	 */
+	public static long piece(int player, int type, int sq)
+	{
+		return bitStrings[((player*6 + type) << 6) + sq];
+	}
+
+	/**
+	 * The bitString that is XORed to the hash when black is to move.
+	 *
+	 * @return	the bitString
+	 */
+	public static long blackToMove()
+	{
+		return bitStrings[768];
+	}
+
+	/**
+	 * The bitString of a castling right.
+	 *
+	 * @param	castle		the castle that the right allows
+	 * @return	the bitString
+	 */
+	public static long castle(Move.Castle castle)
+	{
+		return bitStrings[769 + castle.ordinal()];
+	}
+
+	/**
+	 * The bitString of an en passant square.
+	 *
+	 * @param	sq			the en passant square, or <code>-1</code> if there isn't one
+	 * @return	the bitString, or 0 if there is no en passant square
+	 */
+	public static long enPassant(int sq)
+	{
+		return (sq == -1) ? 0 : bitStrings[EN_PASSANT + sq];
 	}
 	
 	
 	/**
 	 * Static method that generates a zobrist hash from a GameState using the
-	 * bitString set generated statically above.
+	 * bitString set generated statically above. This walks the whole
+	 * position, so it is only used to initialize the hash of a GameState
+	 * (which then updates it incrementally) and to verify it.
 	 *
 	 * @param 	state 		the GameState from whom to construct a key
 	 * @return	the hash code
@@ -53,104 +158,50 @@ public class Zobrist
 		// Initialize hash
 		long hash = 0;
 		// First the board position
-		// There are 832 bitStrings for this part
-		// 13 different ways each square can be
-		Piece p;
-		int i,j=0,k;
-		for(i=0; i<64; i++)
+		long bb;
+		for(int player=0; player<2; player++)
 		{
-			p = state.getBoard()[i];
-			if(p == null)
-			{
-				j = 0;
-			}
-			else
+			for(int type=0; type<6; type++)
 			{
-				switch(p.getPlayer())
-				{
-					case WHITE:
-						switch(p.getType())
-						{
-							case PAWN:
-								j = 1;
-							break;
-							case KNIGHT:
-								j = 2;
-							break;
-							case BISHOP:
-								j = 3;
-							break;
-							case ROOK:
-								j = 4;
-							break;
-							case QUEEN:
-								j = 5;
-							break;
-							case KING:
-								j = 6;
-							break;
-						}
-					break;
-					case BLACK:						
-						switch(p.getType())
-						{
-							case PAWN:
-								j = 7;
-							break;
-							case KNIGHT:
-								j = 8;
-							break;
-							case BISHOP:
-								j = 9;
-							break;
-							case ROOK:
-								j = 10;
-							break;
-							case QUEEN:
-								j = 11;
-							break;
-							case KING:
-								j = 12;
-							break;
-						}
-					break;
-				}
+				for(bb = state.getPieces(player, type); bb != 0; bb &= bb-1)
+					hash ^= piece(player, type, Bitboard.firstSquare(bb));
 			}
-			// Now we have 0 <= i < 64 and 0 <= j < 13
-			// We need k such that 0 <= k < 832
-			// therefore,
-			k = i*13 + j;
-			// Now XOR the corresponding bitString to the hash
-			hash = hash ^ bitStrings[k];
 		}
 		// Now we see the other components
-		if( state.getActivePlayer() == Player.WHITE )
-			hash = hash ^ bitStrings[832];
-		else
-			hash = hash ^ bitStrings[833];
+		if( state.getActivePlayer() == Player.BLACK )
+			hash ^= blackToMove();
 		if( state.canCastleWhiteKingside() )
-			hash = hash ^ bitStrings[834];
-		else
-			hash = hash ^ bitStrings[835];
-		if( state.canCastleBlackKingside() )
-			hash = hash ^ bitStrings[836];
-		else
-			hash = hash ^ bitStrings[837];
+			hash ^= castle(Move.Castle.WK);
 		if( state.canCastleWhiteQueenside() )
-			hash = hash ^ bitStrings[838];
-		else
-			hash = hash ^ bitStrings[839];
+			hash ^= castle(Move.Castle.WQ);
+		if( state.canCastleBlackKingside() )
+			hash ^= castle(Move.Castle.BK);
 		if( state.canCastleBlackQueenside() )
-			hash = hash ^ bitStrings[840];
-		else
-			hash = hash ^ bitStrings[841];
-		if( state.getEnPassant() == -1 )
-			hash = hash ^ bitStrings[842];
-		else
-			hash = hash ^ bitStrings[843+state.getEnPassant()];
+			hash ^= castle(Move.Castle.BQ);
+		hash ^= enPassant(state.getEnPassant());
 		// That's it! We're done..
 		return hash;
 	}
 
+	/**
+	 * Generates the hash of the pawns of a GameState, i.e. the XOR of the
+	 * bitStrings of every pawn on the board. Positions with the same pawn
+	 * skeleton share this hash, whatever the other pieces.
+	 *
+	 * @param 	state 		the GameState from whom to construct a key
+	 * @return	the pawn hash code
+	 */
+	public static long pawnHash(GameState state)
+	{
+		long hash = 0;
+		long bb;
+		for(int player=0; player<2; player++)
+		{
+			for(bb = state.getPieces(player, PieceType.PAWN.ordinal()); bb != 0; bb &= bb-1)
+				hash ^= piece(player, PieceType.PAWN.ordinal(), Bitboard.firstSquare(bb));
+		}
+		return hash;
+	}
+
    
 }
\ No newline at end of file
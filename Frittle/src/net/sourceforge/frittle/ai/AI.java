@@ -43,14 +43,35 @@ public class AI
     public boolean forceMode;
     /** If ponderMode mode is on, the AI thinks on opponent's time */
     public boolean ponderMode;
+    /**
+     * The margin per ply of depth above alpha that a quiet move must be able
+     * to reach to be searched at the frontier nodes (0 turns it off)
+     */
+    public int futilityMargin = 100;
+    /**
+     * The margin per ply of depth by which the static evaluation must beat
+     * beta to prune a node near the leaves (0 turns it off)
+     */
+    public int reverseFutilityMargin = 120;
+    /**
+     * The margin per ply of depth below alpha at which a node near the
+     * leaves is only searched by a quiescence search (0 turns it off)
+     */
+    public int razorMargin = 300;
     /** The clock associated with the engine */
     public Clock clock;
     /** Hashtable containing information about previously searched nodes */
 	TranspositionTable transpositionTable;
+    /** Hashtables caching the pawn structure scores, one for each search thread */
+    PawnHashTable[] pawnHashTables;
+    /** The number of threads to search with */
+    int cores;
     /** Opening book */
     Book book;
     /** The current ongoing search */
     Search search;
+    /** Helper searches running next to the current search, sharing its hashtable */
+    Search[] helpers;
     /** A timer used to automatically interrupt search if it is taking too long */
     Timer timer;
     
@@ -63,18 +84,12 @@ public class AI
 	 */
 	public AI(Frittle engine)
 	{
-		this.engine = engine;
-		// Initialize Transposition Table and Opening Book
+		this(engine, TranspositionTable.DEFAULT_MEGABYTES);
+		// Initialize Opening Book
         try
         {
             Runtime runtime = Runtime.getRuntime();
-            long start = runtime.totalMemory()-runtime.freeMemory();
-            engine.debug("Initializing hashtable...");
-            transpositionTable = new TranspositionTable(4194304);
             long afterHash = runtime.totalMemory()-runtime.freeMemory();
-            int hashtableMB = (int)(afterHash-start)/(1024*1024);
-            float positions = Math.round(transpositionTable.size()/100000.0f)/10.0f; // .1 precision
-            engine.debug("Hashtable ready [" + positions + " million positions in " + hashtableMB + "MB]");
             engine.debug("Loading book...");
             book = new Book("tiny.book");
             long afterBook = runtime.totalMemory()-runtime.freeMemory();
@@ -93,8 +108,24 @@ public class AI
         {
             engine.debug(e.toString());
         }
+	}
+
+	/**
+	 * Creates a new AI engine with a hashtable of the given size and no
+	 * opening book, for searches that never consult the book.
+	 *
+	 * @param engine	the engine for which this AI should think
+	 * @param megabytes	the size of the hashtable in megabytes
+	 */
+	AI(Frittle engine, int megabytes)
+	{
+		this.engine = engine;
+		// Initialize Transposition Table
+        engine.debug("Initializing hashtable...");
+        setMemory(megabytes);
         // Initialize other paramaters
 		this.searchDepth = 128; // Why not? Unless 'sd' is forced
+        setCores(1);
         resetModes();
         // Initially set clock to full base time of the current game
         clock = new Clock(engine.getGame().getClockFormat().getBaseTime());
@@ -137,7 +168,9 @@ public class AI
             return;
         }
 
-        // Now to rely on searching for the best move
+        // Now to rely on searching for the best move. Entries of the previous
+        // searches become the first candidates for replacement.
+        transpositionTable.newSearch();
         long searchTime = searchTime();
         // There might already be a ponder search going on for this position
         if(search != null && search.hash() == state.hash())
@@ -162,9 +195,8 @@ public class AI
         {
             // Destroy any search threads that may be going on
             destroyThreads();
-            // Start a new search thread
-            search = new Search(this, state, this.searchDepth, searchTime, engine);
-            search.start();
+            // Start new search threads
+            startSearch(state, searchTime, false, true);
             // Schedule a timer that will interrupt the search after sometime
             this.timer = new Timer();
             this.timer.schedule(new SearchTimeout(this, this.search), searchTime);
@@ -225,9 +257,10 @@ public class AI
         // Do we have an expected reply?
         long stateHash = state.hash();
 
-        if( transpositionTable.exists(stateHash)==false )
+        long entry = transpositionTable.probe(stateHash);
+        if( entry == TranspositionTable.NO_ENTRY )
             return; // No hashtable entry, cannot ponderMode
-        short replyHash = transpositionTable.getBestMoveHash(stateHash);
+        short replyHash = TranspositionTable.bestMoveHash(entry);
         Move expectedReply = null;
         for(Move reply : state.generateMoves())
         {
@@ -254,9 +287,7 @@ public class AI
         // OK, so here our 'state' variable has been deformed to after
         // the expected reply. Now we create a search thread that will copy this
         // state and start thinking.
-        this.search = new Search(this, state, this.searchDepth, -1, engine);
-        this.search.setPonder(true);
-        this.search.start();
+        startSearch(state, -1, true, true);
         // No timer is required, the more time the opponent takes the better
 
         // Safely undo the move on the current state
@@ -268,6 +299,173 @@ public class AI
 
     }
 
+    /**
+     * Starts the main search thread along with the helper threads of the
+     * other cores. Every thread gets its own copy of the state.
+     *
+     * @param state         the state to search
+     * @param searchTime    the approximate amount of time to use for the search (in milliseconds)
+     * @param ponder        whether the search is a ponder
+     * @param moveWhenDone  whether the main search should play its move when it completes
+     */
+    private void startSearch(GameState state, long searchTime, boolean ponder, boolean moveWhenDone)
+    {
+        transpositionTable.resetStats();
+        this.search = new Search(this, state, this.searchDepth, searchTime, engine);
+        this.search.setPonder(ponder);
+        this.search.setMoveWhenDone(moveWhenDone);
+        this.helpers = new Search[cores-1];
+        for(int i=0; i<helpers.length; i++)
+        {
+            helpers[i] = new Search(this, state, this.searchDepth, -1, engine, i+1);
+            helpers[i].start();
+        }
+        this.search.start();
+    }
+
+    /**
+     * Searches a state to the given depth with the current number of cores
+     * and waits for the search to finish. No move is played.
+     *
+     * @param state     the state to search
+     * @param depth     the depth to search to
+     * @return  the time the search took in milliseconds
+     * @throws InterruptedException if the waiting thread is interrupted
+     */
+    long timeToDepth(GameState state, int depth) throws InterruptedException
+    {
+        long start = System.currentTimeMillis();
+        analyze(state, depth, Long.MAX_VALUE);
+        return System.currentTimeMillis() - start;
+    }
+
+    /**
+     * Searches a position without playing the move or showing thinking,
+     * and waits until the search is over. Any ongoing search is stopped and
+     * waited for first. Every thread started here, helpers included, has
+     * finished by the time this returns, so the hashtable can be cleared or
+     * reused straight away. Unlike a timed game search, the search does not
+     * stop early when the next iteration looks too expensive: it runs until
+     * the depth is reached or the time is up.
+     *
+     * @param state     the state to search
+     * @param depth     the depth to search to if there is time
+     * @param time      the time after which the search is stopped in milliseconds, or
+     *                  <code>Long.MAX_VALUE</code> to search to the depth
+     * @return  the finished main search, from which the results can be read
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    Search analyze(GameState state, int depth, long time) throws InterruptedException
+    {
+        Search previous = this.search;
+        destroyThreads();
+        if(previous != null)
+            previous.join();
+        int oldDepth = this.searchDepth;
+        boolean oldShowThinking = this.showThinking;
+        this.searchDepth = depth;
+        this.showThinking = false;
+        startSearch(state, Long.MAX_VALUE, false, false);
+        Search search = this.search;
+        try
+        {
+            search.join(time == Long.MAX_VALUE ? 0 : time);
+        }
+        finally
+        {
+            // Also waits for the helpers
+            destroyThreads();
+            this.searchDepth = oldDepth;
+            this.showThinking = oldShowThinking;
+        }
+        search.join();
+        return search;
+    }
+
+    /**
+     * Sets the number of threads to search with. The new number is used
+     * from the next search on.
+     *
+     * @param cores     the number of cores the engine may use
+     */
+    public void setCores(int cores)
+    {
+        cores = Math.max(1, cores);
+        // Keep the pawn hashtables that already exist
+        PawnHashTable[] tables = new PawnHashTable[cores];
+        for(int i=0; i<cores; i++)
+        {
+            if(pawnHashTables != null && i < pawnHashTables.length)
+                tables[i] = pawnHashTables[i];
+            else
+                tables[i] = new PawnHashTable(16);
+        }
+        this.pawnHashTables = tables;
+        this.cores = cores;
+    }
+
+    /**
+     * The number of threads to search with
+     * @return the number of cores the engine may use
+     */
+    public int getCores()
+    {
+        return cores;
+    }
+
+    /**
+     * Sets the size of the hashtable. Nothing changes if the hashtable
+     * already has that size, which keeps a loaded hashtable when xboard
+     * sends its memory before every game. Otherwise any ongoing search is
+     * stopped, and the entries move to a hashtable of the new size.
+     *
+     * @param megabytes     the memory the hashtable may use (rounded down to
+     *                      a power of two)
+     */
+    public void setMemory(int megabytes)
+    {
+        megabytes = TranspositionTable.roundMegabytes(megabytes);
+        if(transpositionTable != null && transpositionTable.getMegabytes() == megabytes)
+            return;
+        destroyThreads();
+        if(transpositionTable == null)
+            transpositionTable = new TranspositionTable(megabytes);
+        else
+            transpositionTable = transpositionTable.resize(megabytes);
+        float positions = Math.round(transpositionTable.size()/100000.0f)/10.0f; // .1 precision
+        engine.debug("Hashtable ready [" + positions + " million positions in "
+                + transpositionTable.getMegabytes() + "MB]");
+    }
+
+    /**
+     * Saves the hashtable to a file, so that a later process can start
+     * with it by calling <code>loadHashtable()</code>.
+     *
+     * @param file      the file to write
+     * @throws java.io.IOException  if the file cannot be written
+     */
+    public void saveHashtable(java.io.File file) throws java.io.IOException
+    {
+        transpositionTable.save(file);
+        engine.debug("Hashtable saved to " + file);
+    }
+
+    /**
+     * Replaces the hashtable by one saved to a file. Any ongoing search is
+     * stopped first. The size of the hashtable becomes the saved size.
+     *
+     * @param file      the file to read
+     * @throws java.io.IOException  if the file cannot be read or was saved
+     *                              by an incompatible engine
+     */
+    public void loadHashtable(java.io.File file) throws java.io.IOException
+    {
+        TranspositionTable loaded = TranspositionTable.load(file);
+        destroyThreads();
+        transpositionTable = loaded;
+        engine.debug("Hashtable loaded from " + file + " [" + transpositionTable.getMegabytes() + "MB]");
+    }
+
     /**
      * Estimates an amount of time to spend on thinking about the next move.
      * @return  the amount of time to spend on thinking about the next move in
@@ -326,7 +524,10 @@ public class AI
     }
 
     /**
-     * Terminates any threads that might have been started
+     * Terminates any threads that might have been started. The helper
+     * threads are waited for, so none of them stores into the shared
+     * hashtable once this returns. The main search thread is not waited for,
+     * as it may be the thread calling this through moveNow().
      */
     public void destroyThreads()
     {
@@ -336,6 +537,33 @@ public class AI
             this.search.interrupt();
             this.search = null;
         }
+        // Destroy helper threads and wait for them to finish
+        if(this.helpers != null)
+        {
+            Search[] helpers = this.helpers;
+            this.helpers = null;
+            for(Search helper : helpers)
+                helper.interrupt();
+            // The calling thread may itself be an interrupted search, so its
+            // interrupt flag is put aside until the helpers are done
+            boolean interrupted = Thread.interrupted();
+            for(Search helper : helpers)
+            {
+                while(helper.isAlive())
+                {
+                    try
+                    {
+                        helper.join();
+                    }
+                    catch(InterruptedException e)
+                    {
+                        interrupted = true;
+                    }
+                }
+            }
+            if(interrupted)
+                Thread.currentThread().interrupt();
+        }
         // Cancel all pending tasks from this timer
         if(this.timer != null)
         {
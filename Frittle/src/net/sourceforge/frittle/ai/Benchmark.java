@@ -0,0 +1,156 @@
+/*
+Frittle - Chess Engine for WinBoard/XBoard [http://frittle.sourceforge.net]
+Copyright (C) 2009 Rohan Padhye <verminox@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package net.sourceforge.frittle.ai;
+
+import br.com.vinyanalista.jchessengine.XBoard;
+import net.sourceforge.frittle.GameState;
+import net.sourceforge.frittle.InvalidFENException;
+
+/**
+ * Benchmarks of the whole engine, run over a fixed set of positions so that
+ * the results of different builds and machines can be compared.
+ */
+public class Benchmark
+{
+    /**
+     * Privatize constructor to prevent instantiation.
+     */
+    private Benchmark(){}
+
+    /** The positions searched by the benchmarks, in FEN */
+    static final String[] positions = {
+        "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq -",
+        "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq -",
+        "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - -",
+        "r3k2r/Pppp1ppp/1b3nbN/nP6/BBP1P3/q4N2/Pp1P2PP/R2Q1RK1 w kq -",
+        "rnbq1k1r/pp1Pbppp/2p5/8/2B5/8/PPP1NnPP/RNBQK2R w KQ -",
+        "r4rk1/1pp1qppp/p1np1n2/2b1p1B1/2B1P1b1/P1NP1N2/1PP1QPPP/R4RK1 w - -",
+        "2rr3k/pp3pp1/1nnqbN1p/3pN3/2pP4/2P3Q1/PPB4P/R4RK1 w - -",
+        "8/8/1p1k4/p1p2p2/P1P2P2/1P1K4/8/8 w - -"
+    };
+
+    /** The depth searched by <code>bench()</code> when none is given */
+    public static final int BENCH_DEPTH = 6;
+
+    /**
+     * Searches every position to a fixed depth with a single thread and a
+     * cleared hashtable, and prints the total number of nodes, the time and
+     * the speed. The search is deterministic, so the number of nodes is a
+     * signature of the search: it only changes when the behavior of the
+     * search does.
+     *
+     * @param ai        the AI to search with
+     * @param depth     the depth to search every position to, or 0 for
+     *                  <code>BENCH_DEPTH</code>
+     * @throws InterruptedException if the benchmark is interrupted
+     */
+    public static void bench(AI ai, int depth) throws InterruptedException
+    {
+        if(depth <= 0)
+            depth = BENCH_DEPTH;
+        int oldCores = ai.getCores();
+        ai.setCores(1);
+        long nodes = 0, time = 0;
+        try
+        {
+            for(String fen : positions)
+            {
+                ai.transpositionTable.clear();
+                try
+                {
+                    long start = System.currentTimeMillis();
+                    nodes += ai.analyze(new GameState(fen), depth, Long.MAX_VALUE).getNodeCount();
+                    time += System.currentTimeMillis() - start;
+                }
+                catch(InvalidFENException e)
+                {
+                    XBoard.tellUserError(e.getMessage());
+                }
+            }
+        }
+        finally
+        {
+            ai.setCores(oldCores);
+        }
+        XBoard.send("depth=" + depth + ", nodes=" + nodes + ", time=" + (float)time/1000
+                + ", nps=" + (time > 0 ? nodes*1000/time : 0));
+    }
+
+    /**
+     * Measures the time to search every position to a fixed depth with 1,
+     * 2, 4, ... threads up to the number of available processors, and prints
+     * the speedup of each thread count over a single thread. The
+     * transposition table is cleared before each position, and a first
+     * single-threaded pass is not counted so that the JIT compiler has
+     * warmed up.
+     *
+     * @param ai        the AI to search with
+     * @param depth     the depth to search every position to
+     * @throws InterruptedException if the benchmark is interrupted
+     */
+    public static void timeToDepth(AI ai, int depth) throws InterruptedException
+    {
+        int oldCores = ai.getCores();
+        int maxCores = Runtime.getRuntime().availableProcessors();
+        ai.setCores(1);
+        timeToDepth(ai, depth, positions);
+        long singleThreadTime = 0;
+        for(int cores=1; ; cores = Math.min(cores*2, maxCores))
+        {
+            ai.setCores(cores);
+            long time = timeToDepth(ai, depth, positions);
+            if(cores == 1)
+                singleThreadTime = time;
+            float speedup = (time > 0) ? (float)singleThreadTime/time : 0;
+            XBoard.send("threads=" + cores + ", depth=" + depth + ", time=" + (float)time/1000
+                    + ", speedup=" + Math.round(speedup*100)/100.0f);
+            if(cores >= maxCores)
+                break;
+        }
+        ai.setCores(oldCores);
+    }
+
+    /**
+     * Measures the total time to search the given positions to a fixed
+     * depth, clearing the transposition table before each position.
+     *
+     * @param ai        the AI to search with
+     * @param depth     the depth to search every position to
+     * @param fens      the positions in FEN
+     * @return  the total time in milliseconds
+     * @throws InterruptedException if the benchmark is interrupted
+     */
+    private static long timeToDepth(AI ai, int depth, String[] fens) throws InterruptedException
+    {
+        long time = 0;
+        for(String fen : fens)
+        {
+            ai.transpositionTable.clear();
+            try
+            {
+                time += ai.timeToDepth(new GameState(fen), depth);
+            }
+            catch(InvalidFENException e)
+            {
+                XBoard.tellUserError(e.getMessage());
+            }
+        }
+        return time;
+    }
+}
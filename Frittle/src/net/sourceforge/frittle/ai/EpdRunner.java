@@ -0,0 +1,274 @@
+/*
+Frittle - Chess Engine for WinBoard/XBoard [http://frittle.sourceforge.net]
+Copyright (C) 2009 Rohan Padhye <verminox@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package net.sourceforge.frittle.ai;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import br.com.vinyanalista.jchessengine.XBoard;
+import br.com.vinyanalista.jchessengine.example.Frittle;
+import net.sourceforge.frittle.GameState;
+import net.sourceforge.frittle.InvalidFENException;
+import net.sourceforge.frittle.Move;
+
+/**
+ * Runs the engine over a suite of test positions in EPD format (such as
+ * WAC, ECM or STS) and reports how many it solves.
+ *
+ * Each line of the file holds the first four fields of a FEN followed by
+ * operations separated by semicolons. The <code>bm</code> (best moves) and
+ * <code>am</code> (avoid moves) operations list moves in Standard Algebraic
+ * Notation, and <code>id</code> names the position. A position is solved
+ * when the move found is one of the best moves and none of the moves to
+ * avoid. Its time to solution is the time at which the search first found
+ * the move it finished with.
+ *
+ * The positions are searched in parallel, each by a single-threaded AI of
+ * its own with a cleared hashtable, and the results are printed in the
+ * order of the file.
+ */
+public class EpdRunner
+{
+    /**
+     * Privatize constructor to prevent instantiation.
+     */
+    private EpdRunner(){}
+
+    /**
+     * Searches every position of an EPD file and prints the result of each
+     * one, followed by the totals.
+     *
+     * @param engine    the engine whose settings to use
+     * @param file      the EPD file
+     * @param depth     the depth to search each position to if there is time
+     * @param time      the time to search each position for, in milliseconds
+     * @param threads   the number of positions to search at the same time
+     * @throws IOException  if the file cannot be read
+     * @throws InterruptedException if the run is interrupted
+     */
+    public static void run(Frittle engine, File file, int depth, long time, int threads)
+            throws IOException, InterruptedException
+    {
+        // Read the positions
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(file));
+        try
+        {
+            String line;
+            while((line = reader.readLine()) != null)
+            {
+                if(line.trim().length() > 0)
+                    lines.add(line.trim());
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        // One AI for each thread, sharing the memory of the engine's AI
+        threads = Math.max(1, Math.min(threads, lines.size()));
+        int megabytes = engine.getAI().transpositionTable.getMegabytes() / threads;
+        BlockingQueue<AI> ais = new ArrayBlockingQueue<AI>(threads);
+        for(int i=0; i<threads; i++)
+        {
+            ais.add(new AI(engine, megabytes));
+        }
+        // Search the positions
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Result>> results = new ArrayList<Future<Result>>();
+        for(String line : lines)
+            results.add(pool.submit(new Task(line, ais, depth, time)));
+        int solved = 0, tested = 0;
+        long totalTime = 0, totalNodes = 0, totalSearchTime = 0;
+        try
+        {
+            for(Future<Result> future : results)
+            {
+                Result result;
+                try
+                {
+                    result = future.get();
+                }
+                catch(ExecutionException e)
+                {
+                    XBoard.tellUserError(e.getCause().getMessage());
+                    continue;
+                }
+                XBoard.send(result.toString());
+                totalNodes += result.nodes;
+                totalSearchTime += result.searchTime;
+                if(result.expected != null)
+                {
+                    tested++;
+                    if(result.solved)
+                    {
+                        solved++;
+                        totalTime += result.solutionTime;
+                    }
+                }
+            }
+        }
+        finally
+        {
+            pool.shutdownNow();
+        }
+        XBoard.send("solved=" + solved + "/" + tested + ", solution time=" + (float)totalTime/1000
+                + ", nodes=" + totalNodes + ", nps=" + (totalSearchTime > 0 ? totalNodes*1000/totalSearchTime : 0));
+    }
+
+    /**
+     * The outcome of the search of one position
+     */
+    private static class Result
+    {
+        /** The id of the position, or its FEN if it has none */
+        String id;
+        /** The best and avoid moves as written in the file, or <code>null</code> if there are none */
+        String expected;
+        /** The move found by the search */
+        String move;
+        /** Whether the move found solves the position */
+        boolean solved;
+        /** The time at which the move found was first found, in milliseconds */
+        long solutionTime;
+        /** The time the search took, in milliseconds */
+        long searchTime;
+        /** The number of nodes searched */
+        long nodes;
+
+        @Override public String toString()
+        {
+            return id + ": " + (expected == null ? "untested" : solved ? "solved" : "failed")
+                    + ", move=" + move + (expected == null ? "" : ", expected=" + expected)
+                    + ", time=" + (float)solutionTime/1000 + ", nodes=" + nodes
+                    + ", nps=" + (searchTime > 0 ? nodes*1000/searchTime : 0);
+        }
+    }
+
+    /**
+     * A task that searches one position with an AI taken from a queue
+     */
+    private static class Task implements Callable<Result>
+    {
+        /** The line of the file */
+        private final String line;
+        /** The AIs that are not in use */
+        private final BlockingQueue<AI> ais;
+        /** The depth to search to */
+        private final int depth;
+        /** The time to search for */
+        private final long time;
+
+        Task(String line, BlockingQueue<AI> ais, int depth, long time)
+        {
+            this.line = line;
+            this.ais = ais;
+            this.depth = depth;
+            this.time = time;
+        }
+
+        public Result call() throws InvalidFENException, InterruptedException
+        {
+            // The first four fields are the position, the rest are operations
+            String[] fields = line.split("\\s+", 5);
+            if(fields.length < 4)
+                throw new InvalidFENException(line);
+            String fen = fields[0] + " " + fields[1] + " " + fields[2] + " " + fields[3];
+            GameState state = new GameState(fen);
+            String bm = null, am = null;
+            Result result = new Result();
+            result.id = fen;
+            if(fields.length == 5)
+            {
+                for(String operation : fields[4].split(";"))
+                {
+                    String[] parts = operation.trim().split("\\s+", 2);
+                    if(parts.length < 2)
+                        continue;
+                    if(parts[0].equals("bm"))
+                        bm = parts[1].trim();
+                    else if(parts[0].equals("am"))
+                        am = parts[1].trim();
+                    else if(parts[0].equals("id"))
+                        result.id = parts[1].replace("\"", "").trim();
+                }
+            }
+            if(bm != null || am != null)
+                result.expected = (bm != null ? "bm " + bm : "") + (bm != null && am != null ? " " : "")
+                        + (am != null ? "am " + am : "");
+            // Search the position
+            AI ai = ais.take();
+            Search search;
+            try
+            {
+                ai.transpositionTable.clear();
+                long start = System.currentTimeMillis();
+                search = ai.analyze(state, depth, time);
+                result.searchTime = System.currentTimeMillis() - start;
+            }
+            finally
+            {
+                ais.put(ai);
+            }
+            result.move = search.getBestMoveSoFar();
+            result.solutionTime = search.getBestMoveTime();
+            result.nodes = search.getNodeCount();
+            // Find the packed move to compare it to the expected moves
+            int found = 0;
+            int[] moves = new int[GameState.MAX_MOVES];
+            int count = state.generatePseudoLegalMoves(moves, 0);
+            for(int i=0; i<count; i++)
+            {
+                if(state.isLegal(moves[i]) && Move.toString(moves[i]).equals(result.move))
+                    found = moves[i];
+            }
+            result.solved = found != 0 && (bm == null || matchesAny(found, bm))
+                    && (am == null || !matchesAny(found, am));
+            return result;
+        }
+    }
+
+    /**
+     * Checks whether a packed move is any of a list of moves
+     *
+     * @param move      the packed legal move
+     * @param sans      the moves in SAN, separated by spaces
+     * @return  <code>true</code> if the move is in the list
+     */
+    private static boolean matchesAny(int move, String sans)
+    {
+        for(String san : sans.split("\\s+"))
+        {
+            if(Move.matchesSAN(move, san))
+                return true;
+        }
+        return false;
+    }
+}
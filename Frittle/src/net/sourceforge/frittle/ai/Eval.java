@@ -46,124 +46,163 @@ public class Eval
      */
     public static int evaluate(GameState state)
     {
-        int[] score = new int[2]; // [W|B]
-		int[] material = new int[2]; // [W|B]
-        int[] positional = new int[2]; // [W|B]
-        int[] endgamePos = new int[2]; // [W|B]
-        int[][] pieceCount = new int[2][6]; // [W|B] and [P|N|B|R|Q|K]
-        int[][][] pawns = new int[2][16][3]; // [W|B][n][file|relative_rank]
-        // Relative rank means for black the ranks are reversed, so initial rank for pawn is always 1
-        // Iterate through the board and get material values,
-        // positional scores and piece counts
-        Piece p = null;
-        int player, opponent, type, n;
-        final int FILE = 0, RANK = 1;
-		for(int x=0; x<64; x++)
-		{
-            p = state.getBoard()[x];
-            if(p == null)
-                continue;
-            player = p.getPlayer().ordinal();
-            type = p.getType().ordinal();
-            // Now get the material value
-            material[player] += pieceValue[type];
-            positional[player] += piecePositionalScore[player][type][x];
-            endgamePos[player] += endgamePositionalScore[player][type][x];
-            pieceCount[player][type]++;
-            if(type==0) // Pawn
-            {
-                n = pieceCount[player][0]-1; // Index for storing pawn data
-                pawns[player][n][FILE] = Moves.toFileIndex(x);
-                pawns[player][n][RANK] = Moves.toRankIndex(x);
-                if(player == 1) // reverse ranks for black pawns
-                    pawns[player][n][RANK] = 7-pawns[player][n][RANK];
-            }
+        return evaluate(state, null);
+    }
+
+    /**
+     * Calculates the static evaluation for a given position relative to the
+     * side to move, looking up the pawn structure score in a pawn hash table.
+     *
+     * @param   state       the state to evaluate
+     * @param   pawnTable   the pawn hash table to use, or <code>null</code> to
+     *                      always analyze the pawns
+     * @return  the score of the position in centipawns
+     */
+    public static int evaluate(GameState state, PawnHashTable pawnTable)
+    {
+        int scoreW = evaluate(state, 0), scoreB = evaluate(state, 1);
+        // Analyze pawn structure
+        if(pawnTable != null)
+            scoreW += pawnTable.probe(state);
+        else
+            scoreW += pawnStructureScore(state);
+        // Return as per the point of view of the player to move
+        if(state.getActivePlayer()==Player.WHITE)
+            return scoreW-scoreB;
+        else
+            return scoreB-scoreW;
+    }
+
+    /**
+     * Calculates the score of one player, except for the pawn structure.
+     * Material, piece-square scores and piece counts are kept up to date by
+     * the GameState, so they do not have to be recomputed here.
+     *
+     * @param   state       the state to evaluate
+     * @param   player      the ordinal of the player
+     * @return  the score of the player in centipawns
+     */
+    private static int evaluate(GameState state, int player)
+    {
+        int opponent = 1-player;
+        // Add material value
+        int score = state.getMaterial(player);
+
+        // Add material ratio so that exchanges are favoured when at an advantage
+        //score += (100*score)/state.getMaterial(opponent);
+
+        // Now give positional score based on whether it is middle game or endgame
+
+        // Endgame is when opponent has no queen and either at most one rook
+        // or at most two of the bishop/knight pieces.
+        if( state.getPieceCount(opponent, 4) == 0 &&
+                ( (state.getPieceCount(opponent, 3) <= 1) ||
+                  (state.getPieceCount(opponent, 1)+state.getPieceCount(opponent, 2) <= 2) ) )
+        {
+            score += state.getEndgamePositionalScore(player);
+            // @todo improve endgame analysis other than just positional scoring
         }
-        // See if either side should bring their kings and pawns forward
-        for(player=0, opponent=1; player<2; player++,opponent--)
+        else
         {
-            // Add material value
-            score[player] += material[player];
-
-            // Add material ratio so that exchanges are favoured when at an advantage
-            //score[player] += (100*score[player])/score[opponent];
+            score += state.getPositionalScore(player);
+        }
 
-            // Now give positional score based on whether it is middle game or endgame
+        // Award bishop pairs
+        if(state.getPieceCount(player, 2) >= 2)
+            score += 50;
 
-            // Endgame is when opponent has no queen and either at most one rook
-            // or at most two of the bishop/knight pieces.
-            if( pieceCount[opponent][4] == 0 &&
-                    ( (pieceCount[opponent][3] <= 1) ||
-                      (pieceCount[opponent][1]+pieceCount[opponent][2] <= 2) ) )
-            {
-                score[player] += endgamePos[player];
-                // @todo improve endgame analysis other than just positional scoring
-            }
-            else
-            {
-                score[player] += positional[player];
-            }
+        return score;
+    }
 
-            // Award bishop pairs
-            if(pieceCount[player][2] >= 2)
-                score[player] += 50;
+    /**
+     * Scores the pawn structure of both players. The result only depends on
+     * the pawns, so it can be cached by the pawn hash of the state.
+     *
+     * @param   state       the state to evaluate
+     * @return  the pawn structure score of white minus that of black
+     */
+    static int pawnStructureScore(GameState state)
+    {
+        long white = state.getPieces(0, 0), black = state.getPieces(1, 0);
+        return pawnStructureScore(white, black, 0) - pawnStructureScore(black, white, 1);
+    }
 
-            // Analyze pawn structure
-            boolean doubled, isolated, passed, chained;
-            int[] p1, p2;
-            for(int i=0; i<pieceCount[player][0]; i++)
+    /**
+     * Scores the pawn structure of one player by looking for doubled,
+     * isolated, passed and chained pawns.
+     *
+     * @param   pawns       the bitboard of the pawns of the player
+     * @param   enemyPawns  the bitboard of the pawns of the opponent
+     * @param   player      the ordinal of the player
+     * @return  the pawn structure score of the player in centipawns
+     */
+    private static int pawnStructureScore(long pawns, long enemyPawns, int player)
+    {
+        // Relative rank means for black the ranks are reversed, so initial rank for pawn is always 1
+        int score = 0;
+        boolean doubled, isolated, passed, chained;
+        int x, file, rank, file2, rank2;
+        long bb, bb2;
+        for(bb = pawns; bb != 0; bb &= bb-1)
+        {
+            x = Bitboard.firstSquare(bb); // x is the square of the pawn
+            file = Moves.toFileIndex(x);
+            rank = relativeRank(x, player);
+            doubled = false;
+            isolated = true;
+            passed = true;
+            chained = false;
+            for(bb2 = pawns & ~(1L << x); bb2 != 0; bb2 &= bb2-1) // Friendly pawns
             {
-                p1 = pawns[player][i]; // p1 is the ith pawn of player
-                doubled = false;
-                isolated = true;
-                passed = true;
-                chained = false;
-                for(int j=0; j<pieceCount[player][0]; j++) // Friendly pawns
-                {
-                    p2 = pawns[player][j]; // p2 is the jth pawn of player
-                    if(i==j)
-                        continue; // don't refer to the same pawn
+                x = Bitboard.firstSquare(bb2);
+                file2 = Moves.toFileIndex(x);
+                rank2 = relativeRank(x, player);
 
-                    if(p1[FILE]==p2[FILE] && p1[RANK]<p2[RANK]) // p1 is doubled behind p2
-                        doubled = true;
-                    else if( Math.abs(p1[FILE]-p2[FILE])==1 ) // p2 is on adjacent file
-                    {
-                        if(p1[RANK]-p2[RANK] >= 0) // p2 is behind p1
-                            isolated = false;
-                        if(p1[RANK]-p2[RANK]==1) // p1 is immediately defended by p2
-                            chained = true;
-                    }
-                } // end foreach pawn j
-                for(int j=0; j<pieceCount[opponent][0]; j++)
+                if(file==file2 && rank<rank2) // pawn is doubled behind the other
+                    doubled = true;
+                else if( Math.abs(file-file2)==1 ) // other is on adjacent file
                 {
-                    p2 = pawns[opponent][j]; // p2 is the jth pawn of the opponent
-                    if(  Math.abs(p1[FILE]-p2[FILE])==1 ) // is on adjacent file
-                    {
-                        if((7-p2[RANK]) > p1[RANK]) // is ahead
-                            passed = false;
-                    }
-                } // end foreach pawn j
-                // A doubled pawn cannot be counted passed even if no enemies on adjacent files
-                if(doubled == true)
-                    passed = false;
-                // Now give bonuses or penalties
-                if(doubled)
-                    score[player] -= 20;
-                if(isolated)
-                    score[player] -= 20;
-                if(passed)
-                    score[player] += 60;
-                if(chained)
-                    score[player] += 30;
-            } // end foreach pawn i
-
-        } // end foreach player (playerwise evaluation)
+                    if(rank-rank2 >= 0) // other is behind
+                        isolated = false;
+                    if(rank-rank2==1) // pawn is immediately defended by the other
+                        chained = true;
+                }
+            } // end foreach friendly pawn
+            for(bb2 = enemyPawns; bb2 != 0; bb2 &= bb2-1)
+            {
+                x = Bitboard.firstSquare(bb2);
+                if(  Math.abs(file-Moves.toFileIndex(x))==1 ) // is on adjacent file
+                {
+                    if((7-relativeRank(x, 1-player)) > rank) // is ahead
+                        passed = false;
+                }
+            } // end foreach enemy pawn
+            // A doubled pawn cannot be counted passed even if no enemies on adjacent files
+            if(doubled == true)
+                passed = false;
+            // Now give bonuses or penalties
+            if(doubled)
+                score -= 20;
+            if(isolated)
+                score -= 20;
+            if(passed)
+                score += 60;
+            if(chained)
+                score += 30;
+        } // end foreach pawn
+        return score;
+    }
 
-        // Return as per the point of view of the player to move
-        if(state.getActivePlayer()==Player.WHITE)
-            return score[0]-score[1];
-        else
-            return score[1]-score[0];
+    /**
+     * Gets the rank of a square as seen from the side of a player
+     * @param   x       the square
+     * @param   player  the ordinal of the player
+     * @return  the rank index [0-7], where 0 is the first rank of the player
+     */
+    private static int relativeRank(int x, int player)
+    {
+        int rank = Moves.toRankIndex(x);
+        return (player == 1) ? 7-rank : rank;
     }
 
 
@@ -0,0 +1,117 @@
+/*
+Frittle - Chess Engine for WinBoard/XBoard [http://frittle.sourceforge.net]
+Copyright (C) 2009 Rohan Padhye <verminox@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+
+package net.sourceforge.frittle.ai;
+
+import net.sourceforge.frittle.GameState;
+
+/**
+ * A Pawn Hash Table caches the pawn structure score of previously evaluated
+ * positions, keyed by the hash of the pawns alone. Pawns move rarely, so
+ * most positions of a search tree share their pawn skeleton with one that
+ * has already been analyzed.
+ *
+ * Each search thread should use its own table. The key is stored XORed
+ * with the score, so an entry that is half written by another thread just
+ * fails to match instead of returning a wrong score.
+ */
+public class PawnHashTable
+{
+    /** The pawn hash of each entry, XORed with its score */
+    private long[] key;
+    /** The pawn structure score of each entry (white minus black) */
+    private int[] score;
+    /** The mask that maps a pawn hash to an index */
+    private int mask;
+    /** Counts the lookups that found their entry */
+    private long hits;
+    /** Counts the lookups that had to analyze the pawns */
+    private long misses;
+
+    /**
+     * Construct a new PawnHashTable with the given number of entries.
+     *
+     * @param   bits    the number of entries is 2 to the power of this
+     */
+    public PawnHashTable(int bits)
+    {
+        this.key = new long[1 << bits];
+        this.score = new int[1 << bits];
+        this.mask = (1 << bits) - 1;
+    }
+
+    /**
+     * Gets the pawn structure score of a state, analyzing the pawns only if
+     * the table has no entry for them.
+     *
+     * @param   state   the state to evaluate
+     * @return  the pawn structure score (white minus black) in centipawns
+     */
+    public int probe(GameState state)
+    {
+        long pawnHash = state.pawnHash();
+        int index = (int)pawnHash & mask;
+        int s = score[index];
+        if((key[index] ^ s) == pawnHash)
+        {
+            hits++;
+            return s;
+        }
+        misses++;
+        s = Eval.pawnStructureScore(state);
+        score[index] = s;
+        key[index] = pawnHash ^ s;
+        return s;
+    }
+
+    /**
+     * The number of lookups that found their entry since the last reset
+     * @return  the number of hits
+     */
+    public long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * The number of lookups that missed since the last reset
+     * @return  the number of misses
+     */
+    public long getMisses()
+    {
+        return misses;
+    }
+
+    /**
+     * Resets the hit and miss counters (but keeps the entries)
+     */
+    public void resetStats()
+    {
+        hits = 0;
+        misses = 0;
+    }
+
+    /**
+     * The number of entries in the table
+     * @return the size of the table
+     */
+    public int size()
+    {
+        return key.length;
+    }
+}
@@ -20,8 +20,6 @@ package net.sourceforge.frittle.ai;
 
 import net.sourceforge.frittle.*;
 
-import java.util.Stack;
-
 import br.com.vinyanalista.jchessengine.XBoard;
 import br.com.vinyanalista.jchessengine.example.Frittle;
 
@@ -35,6 +33,12 @@ import br.com.vinyanalista.jchessengine.example.Frittle;
  * and can be interrupted anytime. This also allows the AI to ponder on the
  * opponent's time while being ever-ready to accept the opponent's move from
  * the input stream and interrupt the search.
+ *
+ * When more than one core may be used, the AI starts helper searches on the
+ * same position next to the main one. The helpers share the transposition
+ * table with the main search, so the entries they store steer and cut off
+ * the main search (the so called Lazy SMP). Only the main search reports
+ * its thinking and its best move.
  */
 public class Search extends Thread
 {
@@ -58,6 +62,8 @@ public class Search extends Thread
     private long lastIterationTime;
     /** The best move searched so far */
     private String bestMoveSoFar;
+    /** The time at which the best move searched so far was first found */
+    private long bestMoveTime;
     /** The score of the best move searched so far */
     private int bestScoreSoFar;
     /** Counts the number of nodes in the search */
@@ -66,10 +72,34 @@ public class Search extends Thread
 	private int evalCount;
     /** Keeps track of the deepest ply reached in a normal search */
 	private int deepestPly;
-    /** The current variation being considered */
-    private Stack<Move> currentVariation;
+    /** The number of plies between the root and the current node */
+    private int ply;
+    /**
+     * The packed moves of every node on the current variation, one block
+     * after the other (see <code>Move.encode()</code>)
+     */
+    private int[] moveStack;
+    /** The ordering scores of the moves in <code>moveStack</code> */
+    private int[] scoreStack;
+    /** The index in <code>moveStack</code> after the moves of the current node */
+    private int stackTop;
+    /**
+     * The principal variation found below each ply, as a triangular table of
+     * move hashes. The PV of ply p is pvTable[p][p] to pvTable[p][pvLength[p]-1].
+     */
+    private short[][] pvTable;
+    /** The end of the principal variation of each ply in <code>pvTable</code> */
+    private int[] pvLength;
     /** The killer moves (used for move ordering) */
     private short[][] killer;
+    /** The move picker of each ply of the main search */
+    private MovePicker[] pickers;
+    /** The cache of pawn structure scores used by this search */
+    private PawnHashTable pawnTable;
+    /** The number of the search thread (0 for the main search, more for helpers) */
+    private int id;
+    /** Whether the search should tell the AI to move when it completes normally */
+    private boolean moveWhenDone = true;
 
     /** A flag signaling that the hashtable entry is invalid */
     private static final byte INVALID = 0;
@@ -79,9 +109,47 @@ public class Search extends Thread
     private static final byte PV_NODE = 2;
     /** A flag signalling that the hashtable entry is a CUT NODE */
     private static final byte CUT_NODE = 3;
+    /** Added to exchange values so that they sort as positive numbers */
+    private static final int SEE_OFFSET = 1 << 14;
+    /** The depth above which the null move is reduced by 3 plies instead of 2 */
+    private static final int NULL_MOVE_DEEP = 6;
+    /** The depth from which null move cut-offs are verified */
+    private static final int NULL_MOVE_VERIFICATION_DEPTH = 10;
+    /** The highest depth at which quiet moves are pruned by futility */
+    private static final int FUTILITY_DEPTH = 2;
+    /** The highest depth at which a node is pruned by reverse futility */
+    private static final int REVERSE_FUTILITY_DEPTH = 3;
+    /** The highest depth at which a node is razored */
+    private static final int RAZOR_DEPTH = 2;
+    /** The lowest depth searched with an aspiration window */
+    private static final int ASPIRATION_MIN_DEPTH = 4;
+    /** The initial distance of the aspiration window from the previous score */
+    private static final int ASPIRATION_WINDOW = 25;
+    /** The lowest depth at which late moves are reduced */
+    private static final int LMR_MIN_DEPTH = 3;
+    /** The number of moves of a node that are never reduced */
+    private static final int LMR_MIN_MOVES = 3;
+    /**
+     * The number of plies by which a late move is reduced, which grows
+     * with the logarithm of the depth and of the number of the move.
+     * Should be accessed like [Depth][Move number]
+     */
+    private static final int[][] reductions = new int[64][64];
+    /** The lowest score given to a capture that does not lose material */
+    private static final int GOOD_CAPTURE = 1 << 24;
     
 	private final Frittle engine;
 
+    // Initialize the table of late move reductions
+    static
+    {
+        for(int depth=1; depth<64; depth++)
+        {
+            for(int moveNumber=1; moveNumber<64; moveNumber++)
+                reductions[depth][moveNumber] = (int)(0.5 + Math.log(depth) * Math.log(moveNumber) / 2);
+        }
+    }
+
     /**
      * Initializes a new search. Creates a local copy of the given state
      *
@@ -92,24 +160,41 @@ public class Search extends Thread
      */
     public Search(AI ai, GameState state, int maxDepth, long searchTime, Frittle engine)
     {
-        super("Search");
+        this(ai, state, maxDepth, searchTime, engine, 0);
+    }
+
+    /**
+     * Initializes a new main or helper search. Creates a local copy of the
+     * given state. A helper search never reports anything and keeps on
+     * searching until it is interrupted or reaches the maximum depth.
+     *
+     * @param   ai          the AI object that initialized the search
+     * @param   state       the state to search (it will be copied)
+     * @param   maxDepth    the maximum depth to which to search if not interrupted
+     * @param   searchTime  the approximate amount of time to use for the search (in milliseconds)
+     * @param   id          0 for the main search, or the number of the helper search
+     */
+    Search(AI ai, GameState state, int maxDepth, long searchTime, Frittle engine, int id)
+    {
+        super(id == 0 ? "Search" : "Search helper " + id);
 		this.engine = engine;
         // Create a copy of the game state so that in case of interruption the
         // original state (of Frittle.getGame()) is not left mangled
         this.state = new GameState(state);
         this.hash = state.hash();
         this.bestScoreSoFar = Eval.evaluate(state);
-        if(ai.transpositionTable.exists(hash))
-            this.bestMoveSoFar = Move.hashToString(ai.transpositionTable.getBestMoveHash(hash));
+        long entry = ai.transpositionTable.probe(hash);
+        if(entry != TranspositionTable.NO_ENTRY)
+            this.bestMoveSoFar = Move.hashToString(TranspositionTable.bestMoveHash(entry));
         // Initialize fields
         this.ai = ai;
+        this.id = id;
+        this.pawnTable = ai.pawnHashTables[id];
         this.maxDepth = maxDepth;
         this.searchTime = searchTime;
 		this.nodeCount = 0;
 		this.deepestPly = 0;
 		this.evalCount = 0;
-        this.currentVariation = new Stack<Move>();
-        currentVariation.ensureCapacity(maxDepth);
     }
 
     // @todo separate search of root node
@@ -123,35 +208,83 @@ public class Search extends Thread
 		this.startTime = System.currentTimeMillis();
         this.lastIterationTime = 0;
 		depth = 1;
+        // Odd helpers start one ply deeper so that the threads do not all
+        // search the same depth at the same time
+        if(isHelper() && id % 2 == 1 && maxDepth > 1)
+            depth = 2;
+        pawnTable.resetStats();
         try
         {
             // Initialize killer moves register
             killer = new short[maxDepth+4][2]; // Keep some extra space in case of extensions
+            // Initialize the move stack and the PV table once, so that the
+            // search itself does not allocate anything
+            moveStack = new int[(maxDepth+16)*GameState.MAX_MOVES];
+            scoreStack = new int[moveStack.length];
+            pvTable = new short[maxDepth+4][maxDepth+4];
+            pvLength = new int[maxDepth+4];
+            pickers = new MovePicker[maxDepth+4];
+            for(int i=0; i<pickers.length; i++)
+                pickers[i] = new MovePicker();
             do
             {
-                PrincipalVariation pv = new PrincipalVariation();
-                // Search the node
-                this.bestScoreSoFar = search(-Eval.INFINITY, Eval.INFINITY, depth, pv);
-                    //MTD(f)://this.bestScoreSoFar = MTD(this.bestScoreSoFar, depth, pv);
-                // Get the best move from the hashtable
-                // This HAS to exist because if search() completed then the last
-                // entry made in the hashtable has to be of the root node which WILL
-                // have a best move (if not we are screwed)
-                short bestMoveHash = pv.move;
-                this.bestMoveSoFar = Move.hashToString(bestMoveHash);
+                // Search the node within a window around the score of the
+                // previous iteration (aspiration window). When the score
+                // falls outside, the window is widened on that side and the
+                // node is searched again.
+                int window = ASPIRATION_WINDOW;
+                int alpha = -Eval.INFINITY, beta = Eval.INFINITY;
+                if(depth >= ASPIRATION_MIN_DEPTH && Math.abs(bestScoreSoFar) < Eval.checkmateThreshold)
+                {
+                    alpha = bestScoreSoFar - window;
+                    beta = bestScoreSoFar + window;
+                }
+                int researches = 0;
+                while(true)
+                {
+                    ply = 0;
+                    stackTop = 0;
+                    int score = search(alpha, beta, depth, false);
+                    boolean failLow = score <= alpha && alpha > -Eval.INFINITY;
+                    boolean failHigh = score >= beta && beta < Eval.INFINITY;
+                    if(!failLow && !failHigh)
+                    {
+                        this.bestScoreSoFar = score;
+                        break;
+                    }
+                    researches++;
+                    window *= 2;
+                    if(failLow)
+                        alpha = Math.max(score - window, -Eval.INFINITY);
+                    else
+                        beta = Math.min(score + window, Eval.INFINITY);
+                    if(!isHelper())
+                        engine.debug("Fail " + (failLow ? "low" : "high") + " at depth " + depth
+                                + ", searching again in [" + alpha + ", " + beta + "]");
+                }
+                // Get the best move from the PV of the root
+                // This HAS to exist because if search() completed then the
+                // root node WILL have a best move (if not we are screwed)
+                short bestMoveHash = (pvLength[0] > 0) ? pvTable[0][0] : 0;
+                String bestMove = Move.hashToString(bestMoveHash);
                 // Calcualte time in milliseconds
                 this.lastIterationTime = System.currentTimeMillis() - this.startTime;
+                if(bestMove == null || !bestMove.equals(this.bestMoveSoFar))
+                    this.bestMoveTime = this.lastIterationTime;
+                this.bestMoveSoFar = bestMove;
                 // Show thinking
-                if(ai.showThinking && this.deepestPly > 0)
+                if(ai.showThinking && !isHelper() && this.deepestPly > 0)
                 {
                     // Get Principal Variation as a string
                     String movStr, pvStr = new String();
-                    while(pv != null && pv.move != 0)
+                    for(int i=0; i<pvLength[0] && pvTable[0][i] != 0; i++)
                     {
-                        movStr = Move.hashToString(pv.move);
+                        movStr = Move.hashToString(pvTable[0][i]);
                         pvStr = pvStr + movStr + " ";
-                        pv = pv.subPV;
                     }
+                    // And the aspiration window it was found in
+                    if(alpha > -Eval.INFINITY || beta < Eval.INFINITY)
+                        pvStr = pvStr + "{window " + alpha + " " + beta + ", " + researches + " re-searches}";
                     // Give the protocol information about this particular search
                     XBoard.showThinking(depth, deepestPly,
                             bestScoreSoFar, (int)this.lastIterationTime, nodeCount, evalCount, pvStr);
@@ -162,14 +295,15 @@ public class Search extends Thread
                 {
                     break;
                 }
-                // Smart time control
-                if(canSearchDeeper() == false)
+                // Smart time control (helpers run until the main search is done)
+                if(!isHelper() && canSearchDeeper() == false)
                     break;
                 // Increment depth for next iteration
                 depth++;
             } while (depth <= this.maxDepth);
             // If a real search completes normally, then we move now
-            this.ai.moveNow();
+            if(!isHelper() && moveWhenDone)
+                this.ai.moveNow();
         }
         catch(InterruptedException e)
         {
@@ -178,6 +312,17 @@ public class Search extends Thread
             // In either case, the moveNow() method will already have been called
             // so we just finish this thread normally
         }
+        // Report how well the pawn hash table did
+        long pawnHits = pawnTable.getHits(), pawnProbes = pawnHits + pawnTable.getMisses();
+        if(pawnProbes > 0 && !isHelper())
+            engine.debug("Pawn hash: " + pawnHits + " hits, " + (pawnProbes-pawnHits) + " misses ["
+                    + (100*pawnHits/pawnProbes) + "% hit rate]");
+        // And how well the transposition table did
+        TranspositionTable table = ai.transpositionTable;
+        if(table.getProbes() > 0 && !isHelper())
+            engine.debug("Hashtable: " + table.getHits() + " hits in " + table.getProbes() + " probes ["
+                    + (100*table.getHits()/table.getProbes()) + "% hit rate], " + table.getOverwrites()
+                    + " overwrites in " + table.getStores() + " stores, " + table.hashfull() + " permille full");
     }
 
     /**
@@ -189,35 +334,42 @@ public class Search extends Thread
      * @param alpha     the lower bound in alpha-beta search
      * @param beta      the upper bound in alpha-beta search
      * @param depth     the number of plies in the game tree below this node
-     * @param pv        the principal variation of the node
+     * @param nullMoveAllowed   whether the node may try a null move (false
+     *                  at the root and right after another null move)
      * @return          the score of the search of the state in centipawns
      * @exception InterruptedException  if the user or timer interrupts the search
      */
-    private int search(int alpha, int beta, int depth, PrincipalVariation pv) throws InterruptedException
+    private int search(int alpha, int beta, int depth, boolean nullMoveAllowed) throws InterruptedException
     {
         // Check for interruption
         if(isInterrupted())
             throw new InterruptedException();
         // Increment counters each time we crawl through a node
         nodeCount++;
-        int ply = currentVariation.size();
         deepestPly = Math.max(deepestPly, ply);
+        // The principal variation of this node is empty until a move raises alpha
+        pvLength[ply] = ply;
         // Check transposition table if this has already been searched enough
         // And even if it has not, at least try to get a best move
         long stateHash = state.hash();
         short bestMoveHash = 0; // By default assume no hash move found
-        if(ai.transpositionTable.exists(stateHash)) // Found a corresponding entry
+        long entry = ai.transpositionTable.probe(stateHash);
+        if(entry != TranspositionTable.NO_ENTRY) // Found a corresponding entry
         {
             // At least store the best move
-            bestMoveHash = ai.transpositionTable.getBestMoveHash(stateHash);
+            bestMoveHash = TranspositionTable.bestMoveHash(entry);
             // Now check if the score is enough to return directly
-            if(ai.transpositionTable.getDepth(stateHash) >= depth)
+            if(TranspositionTable.depth(entry) >= depth)
             {
-                int hashScore = ai.transpositionTable.getScore(stateHash);
-                int flag = ai.transpositionTable.getFlag(stateHash);
+                int hashScore = TranspositionTable.score(entry);
+                int flag = TranspositionTable.flag(entry);
                 if((flag==PV_NODE) || (flag==ALL_NODE && hashScore <= alpha) || (flag==CUT_NODE && hashScore >= beta))
                 {
-                    pv.move = bestMoveHash;
+                    if(bestMoveHash != 0)
+                    {
+                        pvTable[ply][ply] = bestMoveHash;
+                        pvLength[ply] = ply+1;
+                    }
                     return hashScore;
                 }
             }
@@ -227,7 +379,6 @@ public class Search extends Thread
 
         // Initialize some variables
         int score, bestScore;
-        PrincipalVariation subPV = new PrincipalVariation();
 
         // If depth is 0, perform static eval (or quiescence search)
         if(depth <= 0)
@@ -237,27 +388,69 @@ public class Search extends Thread
             return score;
         }
 
-        // Now, generate all legal moves from this point
-        MoveList moveList = state.generateMoves();
+        // The pruning below is never done at PV-nodes, in check, or when
+        // the bounds are mate scores
+        boolean inCheck = state.isInCheck(state.getActivePlayer());
+        boolean canPrune = beta - alpha == 1 && !inCheck && Math.abs(beta) < Eval.checkmateThreshold;
+        int staticEval = canPrune ? Eval.evaluate(state, pawnTable) : 0;
+
+        // Reverse futility pruning: close to the leaves, a static evaluation
+        // that is far above beta will hardly drop below it
+        if(canPrune && depth <= REVERSE_FUTILITY_DEPTH && ai.reverseFutilityMargin > 0
+                && staticEval - ai.reverseFutilityMargin*depth >= beta)
+            return staticEval - ai.reverseFutilityMargin*depth;
 
-        // Make sure there is at least one legal move
-        if(moveList.isEmpty())
+        // Razoring: close to the leaves, a static evaluation that is far
+        // below alpha is only raised by a tactic, so a quiescence search
+        // decides whether the node is worth searching
+        if(canPrune && depth <= RAZOR_DEPTH && ai.razorMargin > 0
+                && staticEval + ai.razorMargin*depth <= alpha)
         {
-            // This is mate state.
-            // However, stalemate is also possible, in which case score should
-            // not be INIFINITY but rather 0 for draw.
-            if(state.isInCheck(state.getActivePlayer()))
-                bestScore = -Eval.INFINITY; // Checkmate
-            else
-                bestScore = 0; // Stalemate score
-            // Store exact score with large depth so that on every other request
-            // to this item from the hashtable, we return early
-            ai.transpositionTable.store(stateHash, 100, bestScore, PV_NODE, bestMoveHash);
-            return bestScore;
+            score = quiescenceSearch(alpha, beta);
+            if(depth == 1 || score <= alpha)
+                return score;
         }
 
-        // Order moves with best at the top
-        orderMoves(moveList, ply, bestMoveHash);
+        // Null-move pruning: if the position is still good enough for a
+        // beta cut-off when the opponent is allowed to move twice, then a
+        // real move will almost surely be too, so a reduced search of the
+        // null move decides. It is not tried twice in a row, or when the
+        // active player only has pawns left, because then every move might
+        // make the position worse (zugzwang).
+        if(nullMoveAllowed && canPrune && depth >= 2 && hasPieces(state.getActivePlayer())
+                && staticEval >= beta)
+        {
+            // Reduce deeper searches more
+            int reduction = (depth > NULL_MOVE_DEEP) ? 3 : 2;
+            state.doNullMove();
+            ply++;
+            score = -search(-beta, -beta+1, depth-1-reduction, false);
+            ply--;
+            state.undoNullMove();
+            if(score >= beta)
+            {
+                // A mate found after passing the turn is not a real mate
+                if(score > Eval.checkmateThreshold)
+                    score = beta;
+                // At high depths, a reduced search of the real moves must
+                // confirm the cut-off, in case of a zugzwang with pieces
+                if(depth < NULL_MOVE_VERIFICATION_DEPTH || search(beta-1, beta, depth-1-reduction, false) >= beta)
+                {
+                    ai.transpositionTable.store(stateHash, depth, score, CUT_NODE, bestMoveHash);
+                    return score;
+                }
+            }
+        }
+
+        // Now, get ready to pick the pseudo-legal moves from this point one
+        // at a time. They are only generated and scored when the moves tried
+        // before them did not cause a beta cut-off, and their legality is
+        // only tested when they are about to be searched.
+        int first = stackTop;
+        if(first + GameState.MAX_MOVES > moveStack.length)
+            growMoveStack();
+        MovePicker picker = pickers[ply];
+        picker.init(first, ply, bestMoveHash);
 
         /* Now time to search child nodes of the search tree */
 
@@ -265,27 +458,65 @@ public class Search extends Thread
         // If an exact score is found or beta cut-off is made, flag is changed
         int flag = ALL_NODE;
         short moveHash;
+        int move;
         // Initialize variables used in the search
         bestScore = -Eval.INFINITY;
         // Control variable for whether or not to perform a zero-window PVS
         boolean zwSearch = false; // This should be false only for the first move
+        // The number of legal moves searched so far
+        int moveNumber = 0;
+        // Futility pruning: close to the leaves, a quiet move is unlikely to
+        // raise a static evaluation that is far below alpha
+        int futilityScore = staticEval + ai.futilityMargin*depth;
+        boolean futile = canPrune && depth <= FUTILITY_DEPTH && ai.futilityMargin > 0
+                && futilityScore <= alpha;
         // Now search each move recursively
-        for(Move move : moveList)
+        while((move = picker.next()) != 0)
         {
-            moveHash = move.hash();
+            // Skip moves that leave our king in check
+            if(!state.isLegal(move))
+                continue;
+            moveHash = Move.hash(move);
+            moveNumber++;
+            // Late quiet moves are unlikely to be good, so they might be
+            // searched to a lower depth (late move reduction)
+            boolean reducible = zwSearch && depth >= LMR_MIN_DEPTH && moveNumber > LMR_MIN_MOVES && !inCheck
+                    && !Move.isCapture(move) && !Move.isPromotion(move)
+                    && killer[ply][0] != moveHash && killer[ply][1] != moveHash;
             state.doMove(move);
-            currentVariation.push(move);
+            ply++;
+            // Skip futile quiet moves, unless they give check. The first
+            // move is always searched, so a mate is never mistaken for it.
+            if(futile && zwSearch && !Move.isCapture(move) && !Move.isPromotion(move)
+                    && !state.isInCheck(state.getActivePlayer()))
+            {
+                ply--;
+                state.undoMove(move);
+                bestScore = Math.max(bestScore, futilityScore);
+                continue;
+            }
             if(zwSearch)
             {
-                score = -search(-alpha-1, -alpha, depth-1, subPV);  // Zero-window search
+                int reduction = 0;
+                // Moves that give check are not reduced either
+                if(reducible && !state.isInCheck(state.getActivePlayer()))
+                {
+                    reduction = reductions[Math.min(depth, 63)][Math.min(moveNumber, 63)];
+                    if(beta - alpha > 1) // Reduce less at PV-nodes
+                        reduction--;
+                    reduction = Math.max(0, Math.min(reduction, depth-2));
+                }
+                score = -search(-alpha-1, -alpha, depth-1-reduction, true);  // Zero-window search
+                if(reduction > 0 && score > alpha)
+                    score = -search(-alpha-1, -alpha, depth-1, true); // Re-search at full depth
                 if(score > alpha && score < beta)
-                    score = -search(-beta, -alpha, depth-1, subPV); // Re-search with full window
+                    score = -search(-beta, -alpha, depth-1, true); // Re-search with full window
             }
             else
             {
-                score = -search(-beta, -alpha, depth-1, subPV); // Full window search on first move
+                score = -search(-beta, -alpha, depth-1, true); // Full window search on first move
             }
-            currentVariation.pop();
+            ply--;
             state.undoMove(move);
             if(score > Eval.checkmateThreshold)
             {
@@ -294,7 +525,7 @@ public class Search extends Thread
             if(score >= beta) // Beta cut-off
             {
                 // Save killer move if possible
-                if(move.isCapture() == false && move.promotion == null &&
+                if(Move.isCapture(move) == false && Move.isPromotion(move) == false &&
                         killer[ply][0] != moveHash && killer[ply][1] != moveHash)
                 {
                     killer[ply][0] = killer[ply][1];
@@ -302,6 +533,7 @@ public class Search extends Thread
                 }
                 // Store in hashtable
                 ai.transpositionTable.store(stateHash, depth, score, CUT_NODE, bestMoveHash);
+                stackTop = first;
                 return score; // Fail-soft beta cut-off
             }
             if(score > bestScore) // Better than before
@@ -312,12 +544,30 @@ public class Search extends Thread
                 {
                     alpha = score; // Raise alpha
                     flag = PV_NODE; // since alpha < score < beta
-                    pv.move  = bestMoveHash; // Set best move for this variation
-                    pv.subPV = new PrincipalVariation(subPV); // Copy sub-pv of best move
+                    // Set best move for this variation followed by its sub-pv
+                    pvTable[ply][ply] = bestMoveHash;
+                    System.arraycopy(pvTable[ply+1], ply+1, pvTable[ply], ply+1, pvLength[ply+1]-ply-1);
+                    pvLength[ply] = pvLength[ply+1];
                 }
             }
             zwSearch = true; // So that all moves after the first will be tried with zero window
         }
+        stackTop = first;
+        // Make sure there was at least one legal move
+        if(!zwSearch)
+        {
+            // This is mate state.
+            // However, stalemate is also possible, in which case score should
+            // not be INIFINITY but rather 0 for draw.
+            if(state.isInCheck(state.getActivePlayer()))
+                bestScore = -Eval.INFINITY; // Checkmate
+            else
+                bestScore = 0; // Stalemate score
+            // Store exact score with large depth so that on every other request
+            // to this item from the hashtable, we return early
+            ai.transpositionTable.store(stateHash, 100, bestScore, PV_NODE, bestMoveHash);
+            return bestScore;
+        }
         // At this point there was no beta cut-off, so the node is either
         // a PV-node or an All-node
         // The 'flag' has the correct value
@@ -325,6 +575,22 @@ public class Search extends Thread
         return bestScore;
     }
     
+    /**
+     * Whether a player has any piece left other than pawns and the king
+     * @param player    the player
+     * @return  true if the player has a knight, bishop, rook or queen
+     */
+    private boolean hasPieces(Player player)
+    {
+        int p = player.ordinal();
+        for(int type=PieceType.KNIGHT.ordinal(); type<=PieceType.QUEEN.ordinal(); type++)
+        {
+            if(state.getPieceCount(p, type) > 0)
+                return true;
+        }
+        return false;
+    }
+
     /**
      * Performs a Quiescence search on the given node.
      *
@@ -338,10 +604,10 @@ public class Search extends Thread
         // Increment counters
         this.nodeCount++;
         this.evalCount++;
-        deepestPly = Math.max(deepestPly, currentVariation.size());
+        deepestPly = Math.max(deepestPly, ply);
 
         // Perform static evaluation of this state
-        int staticEval = Eval.evaluate(state);
+        int staticEval = Eval.evaluate(state, pawnTable);
 
         // If the static evaluation itself exceeded beta, return
         if(staticEval > beta)
@@ -353,19 +619,32 @@ public class Search extends Thread
 
         // Now look through non-quiet moves
         int score, bestScore = staticEval;
-        MoveList captures = state.generateCaptures();
-        orderCaptures(captures);
-        for(Move move : captures)
+        int first = stackTop;
+        if(first + GameState.MAX_MOVES > moveStack.length)
+            growMoveStack();
+        int last = state.generatePseudoLegalCaptures(moveStack, first);
+        stackTop = last;
+        orderCaptures(first, last);
+        for(int i=first; i<last; i++)
         {
+            int move = pickMove(i, last);
+            // The captures are sorted by their exchange value, so once one
+            // loses material all the remaining ones do too
+            if(scoreToExchangeValue(scoreStack[i]) < 0)
+                break;
+            // Skip captures that leave our king in check
+            if(!state.isLegal(move))
+                continue;
             // Make the capture and recursively perform a quiescence search
             state.doMove(move);
-            currentVariation.push(move);
+            ply++;
             score = -quiescenceSearch(-beta, -alpha);
-            currentVariation.pop();
+            ply--;
             state.undoMove(move);
             // Look for beta cut-off
             if(score > beta)
             {
+                stackTop = first;
                 return score;
             }
             // Improve best score or alpha if possible
@@ -378,188 +657,314 @@ public class Search extends Thread
                 }
             }
         }
+        stackTop = first;
         return bestScore;
     }
 
     /**
-     * Sorts moves in the following order:
+     * Scores captures and promotions so that pickMove() yields them by their
+     * static exchange evaluation, and then in MVV/LVA order
+     *
+     * @param first         the index in <code>moveStack</code> of the first capture
+     * @param last          the index in <code>moveStack</code> after the last capture
+     */
+    private void orderCaptures(int first, int last)
+    {
+        for(int i=first; i<last; i++)
+        {
+            int move = moveStack[i];
+            scoreStack[i] = ((exchangeValue(move) + SEE_OFFSET) << 14) | (mvvLva(move) << 8) | (255 - (i-first));
+        }
+    }
+
+    /**
+     * Gets the static exchange evaluation back from a score given by
+     * orderCaptures()
+     * @param score     the ordering score of a capture
+     * @return  the material won by the capture in centipawns
+     */
+    private static int scoreToExchangeValue(int score)
+    {
+        return (score >> 14) - SEE_OFFSET;
+    }
+
+    /**
+     * The static exchange evaluation of a capture or promotion, except that
+     * minor promotions always count as losing material. They are hardly ever
+     * better than a queen promotion, so they are tried last and never in the
+     * quiescence search.
+     * @param move      the packed capture or promotion
+     * @return  the material won by the move in centipawns
+     */
+    private int exchangeValue(int move)
+    {
+        int see = state.see(move);
+        if(Move.isPromotion(move) && Move.promotion(move) != PieceType.QUEEN.ordinal())
+            return Math.min(see, -1);
+        return see;
+    }
+
+    /**
+     * Scores a capture by its most valuable victim, and then by its least
+     * valuable attacker. A promotion without a capture has no victim.
+     * @param move      the packed capture or promotion
+     * @return  the MVV/LVA score [0-63]
+     */
+    private static int mvvLva(int move)
+    {
+        return ((Move.captured(move) + 1) << 3) | (7 - Move.moved(move));
+    }
+
+    /**
+     * Finds the move with the highest score between <code>i</code> and
+     * <code>last</code> and swaps it into position <code>i</code>. Picking
+     * moves one at a time is cheaper than sorting the whole list when a
+     * beta cut-off comes early.
+     *
+     * @param i         the index in <code>moveStack</code> to fill
+     * @param last      the index in <code>moveStack</code> after the last move
+     * @return  the picked move
+     */
+    private int pickMove(int i, int last)
+    {
+        int best = i;
+        for(int j=i+1; j<last; j++)
+        {
+            if(scoreStack[j] > scoreStack[best])
+                best = j;
+        }
+        int move = moveStack[best];
+        moveStack[best] = moveStack[i];
+        moveStack[i] = move;
+        int score = scoreStack[best];
+        scoreStack[best] = scoreStack[i];
+        scoreStack[i] = score;
+        return move;
+    }
+
+    /**
+     * Doubles the room of the move stack. This only happens if the current
+     * variation gets much longer than the maximum depth.
+     */
+    private void growMoveStack()
+    {
+        int[] moves = new int[moveStack.length*2];
+        int[] scores = new int[moveStack.length*2];
+        System.arraycopy(moveStack, 0, moves, 0, stackTop);
+        System.arraycopy(scoreStack, 0, scores, 0, stackTop);
+        moveStack = moves;
+        scoreStack = scores;
+    }
+
+    /**
+     * Yields the pseudo-legal moves of a node of the main search one at a
+     * time, in the following order:
      * <ol>
      * <li>PV-move (from transposition table)</li>
-     * <li>Winning capture</li>
-     * <li>Queen promotion</li>
-     * <li>Good capture</li>
+     * <li>Winning capture or queen promotion</li>
+     * <li>Equal capture</li>
      * <li>Killer move</li>
      * <li>Castle</li>
-     * <li>Losing capture</li>
-     * <li>Minor promotion</li>
      * <li>Other</li>
+     * <li>Losing capture or minor promotion</li>
      * </ol>
-     * @param moves         list of moves
-     * @param ply           the ply at which the move list was generated
-     * @param bestMoveHash  the hash of the move from the transposition table, if any
+     * Each group of moves is only generated once the moves before it have
+     * been searched without a beta cut-off, so a cut-off by the PV-move
+     * does not generate anything at all. Captures and promotions are
+     * classified by their static exchange evaluation. Winning captures are further sorted using
+     * the MVV/LVA technique, and losing captures by how little they lose.
+     * Moves of the same class keep the order in which they were generated.
+     *
+     * There is one picker for each ply, and the moves are generated into
+     * <code>moveStack</code> after <code>stackTop</code>.
      */
-    private void orderMoves(MoveList moves, int ply, short bestMoveHash)
+    private class MovePicker
     {
-        // Initialize buckets
-        MoveList pvMove =           new MoveList();
-        MoveList winningCaptures =  new MoveList();
-        MoveList queenPromotions =  new MoveList();
-        MoveList goodCaptures =     new MoveList();
-        MoveList killers =          new MoveList();
-        MoveList castles =          new MoveList();
-        MoveList losingCaptures =   new MoveList();
-        MoveList minorPromotions =  new MoveList();
-        MoveList otherMoves =       new MoveList();
-
-        // Go through each move, and put it in the correct bucket
-        for(Move move : moves)
+        /** Stage: try the move from the transposition table */
+        private static final int PV_MOVE = 0;
+        /** Stage: generate and score the captures and promotions */
+        private static final int GENERATE_CAPTURES = 1;
+        /** Stage: yield the captures that do not lose material */
+        private static final int GOOD_CAPTURES = 2;
+        /** Stage: try the killer moves */
+        private static final int KILLERS = 3;
+        /** Stage: generate and score the other moves */
+        private static final int GENERATE_QUIETS = 4;
+        /** Stage: yield the other moves */
+        private static final int QUIETS = 5;
+        /** Stage: yield the captures that lose material */
+        private static final int BAD_CAPTURES = 6;
+        /** Stage: there are no moves left */
+        private static final int DONE = 7;
+
+        /** The current stage */
+        private int stage;
+        /** The ply of the node */
+        private int ply;
+        /** The hash of the move from the transposition table, if any */
+        private short bestMoveHash;
+        /** The move from the transposition table, or 0 if it is not pseudo-legal */
+        private int bestMove;
+        /** The killer moves that were tried, or 0 */
+        private int[] killerMoves = new int[2];
+        /** The number of killer moves looked at so far */
+        private int killerIndex;
+        /** The index in <code>moveStack</code> of the next move to pick */
+        private int next;
+        /** The index in <code>moveStack</code> after the moves of the current stage */
+        private int end;
+        /** The index in <code>moveStack</code> of the first losing capture */
+        private int badFirst;
+        /** The index in <code>moveStack</code> after the last losing capture */
+        private int badEnd;
+
+        /**
+         * Gets ready to pick the moves of a new node
+         *
+         * @param first         the index in <code>moveStack</code> at which to generate the moves
+         * @param ply           the ply of the node
+         * @param bestMoveHash  the hash of the move from the transposition table, if any
+         */
+        void init(int first, int ply, short bestMoveHash)
         {
-            short moveHash = move.hash();
-            if(moveHash==bestMoveHash)
-            {
-                pvMove.add(move);
-            }
-            else if(move.isCapture() &&
-               Eval.pieceValue[move.movedPiece.getType().ordinal()] <
-               Eval.pieceValue[move.capturedPiece.getType().ordinal()])
-            {
-                winningCaptures.add(move);
-            }
-            else if(move.promotion == PieceType.QUEEN) 
-            {
-                queenPromotions.add(move);
-            }
-            else if(move.isCapture() &&
-               Eval.pieceValue[move.movedPiece.getType().ordinal()] ==
-               Eval.pieceValue[move.capturedPiece.getType().ordinal()])
-            {
-                goodCaptures.add(move);
-            }
-            else if(killer[ply][0] == moveHash || killer[ply][1] == moveHash)
-            {
-                killers.add(move);
-            }
-            else if(move.isCastle())
-            {
-                castles.add(move);
-            }
-            else if(move.isCapture())
-            {
-                losingCaptures.add(move);
-            }
-            else if(move.isPromotion())
-            {
-                minorPromotions.add(move);
-            }
-            else
+            this.stage = PV_MOVE;
+            this.ply = ply;
+            this.bestMoveHash = bestMoveHash;
+            this.bestMove = 0;
+            this.killerMoves[0] = this.killerMoves[1] = 0;
+            this.killerIndex = 0;
+            this.next = this.end = first;
+            this.badFirst = this.badEnd = first;
+        }
+
+        /**
+         * Picks the next move to search
+         *
+         * @return  the packed move, or 0 when there are no moves left
+         */
+        int next()
+        {
+            int move;
+            while(true)
             {
-                otherMoves.add(move);
+                switch(stage)
+                {
+                    case PV_MOVE:
+                        stage = GENERATE_CAPTURES;
+                        bestMove = state.toPseudoLegalMove(bestMoveHash);
+                        if(bestMove != 0)
+                            return bestMove;
+                        break;
+                    case GENERATE_CAPTURES:
+                        end = state.generatePseudoLegalCaptures(moveStack, next);
+                        stackTop = end;
+                        scoreCaptures(next, end);
+                        stage = GOOD_CAPTURES;
+                        break;
+                    case GOOD_CAPTURES:
+                        while(next < end)
+                        {
+                            move = pickMove(next, end);
+                            // The rest of the captures all lose material
+                            if(scoreStack[next] < GOOD_CAPTURE)
+                                break;
+                            next++;
+                            if(move != bestMove)
+                                return move;
+                        }
+                        badFirst = next;
+                        badEnd = next = end;
+                        stage = KILLERS;
+                        break;
+                    case KILLERS:
+                        // The most recent killer move first
+                        while(killerIndex < 2)
+                        {
+                            move = state.toPseudoLegalMove(killer[ply][1 - killerIndex]);
+                            if(move != 0 && !Move.isCapture(move) && move != bestMove)
+                            {
+                                killerMoves[killerIndex++] = move;
+                                return move;
+                            }
+                            killerIndex++;
+                        }
+                        stage = GENERATE_QUIETS;
+                        break;
+                    case GENERATE_QUIETS:
+                        end = state.generatePseudoLegalQuiets(moveStack, next);
+                        stackTop = end;
+                        scoreQuiets(next, end);
+                        stage = QUIETS;
+                        break;
+                    case QUIETS:
+                        while(next < end)
+                        {
+                            move = pickMove(next++, end);
+                            if(move != bestMove && move != killerMoves[0] && move != killerMoves[1])
+                                return move;
+                        }
+                        next = badFirst;
+                        end = badEnd;
+                        stage = BAD_CAPTURES;
+                        break;
+                    case BAD_CAPTURES:
+                        while(next < end)
+                        {
+                            move = pickMove(next++, end);
+                            if(move != bestMove)
+                                return move;
+                        }
+                        stage = DONE;
+                        break;
+                    default:
+                        return 0;
+                }
             }
         }
-                orderCaptures(winningCaptures);
-
-        // Clear the move list and concatenate buckets to form the ordered list
-        moves.clear();
-        moves.addAll(pvMove);
-        moves.addAll(winningCaptures);
-        moves.addAll(queenPromotions);
-        moves.addAll(goodCaptures);
-        moves.addAll(killers);
-        moves.addAll(castles);
-        moves.addAll(losingCaptures);
-        moves.addAll(minorPromotions);
-        moves.addAll(otherMoves);
-
     }
 
     /**
-     * Sorts captures using the MVV/LVA technique
-     * @param captures      the list of capture moves
+     * Scores the captures and promotions of the main search by their static
+     * exchange evaluation. Winning captures are sorted by MVV/LVA, and losing
+     * ones score below <code>GOOD_CAPTURE</code>.
+     *
+     * @param first         the index in <code>moveStack</code> of the first capture
+     * @param last          the index in <code>moveStack</code> after the last capture
      */
-    private void orderCaptures(MoveList captures)
-    {
-        // Initialie buckets
-        MoveList buckets[] = new MoveList[6];
-
-        // Bucketize and sort according to least valuable attacker
-        for(int i=0; i<6; i++)
-            buckets[i] = new MoveList();
-        for(Move capture : captures)
-            buckets[capture.movedPiece.getType().ordinal()].add(capture);
-        captures.clear();
-        for(int i=0; i<6; i++)
-            captures.addAll(buckets[i]);
-        // Bucketize and sort according to most valuable victim
-        for(int i=0; i<6; i++)
-            buckets[i] = new MoveList();
-        for(Move capture : captures)
-            buckets[capture.capturedPiece.getType().ordinal()].add(capture);
-        captures.clear();
-        for(int i=5; i>=0; i--)
-            captures.addAll(buckets[i]);
-    }
-
-    /// The gain from recapturing at given square (not used currently)
-    private int recaptureScore(int square)
+    private void scoreCaptures(int first, int last)
     {
-        if(currentVariation.size() > deepestPly)
-            deepestPly = currentVariation.size();
-        // If we can't recapture, then we return 0. Otherwise we return
-        // a positive number that denotes how much we gain by recapturing
-        int score = 0;
-        // Find the move that can recapture with the least valuable attacker
-        Move recaptureMove = Move.getBestCapture(state, (byte)square);
-        if(recaptureMove == null)
-        {
-            // There is no legal recapture, so return 0
-            return score;
-        }
-        // Now try the recapture
-        state.doMove(recaptureMove);
-        currentVariation.push(recaptureMove);
-        int scoreAfterOpponentRecaptures = -recaptureScore(square);
-        currentVariation.pop();
-        state.undoMove(recaptureMove);
-        if(scoreAfterOpponentRecaptures >= 0)
+        for(int i=first; i<last; i++)
         {
-            // We only consider the recapture if the opponent's recapture doesn't
-            // screw us over
-            int gainedMaterialValue = Eval.pieceValue[recaptureMove.capturedPiece.getType().ordinal()];
-            score = gainedMaterialValue + scoreAfterOpponentRecaptures;
+            int move = moveStack[i];
+            int see = exchangeValue(move);
+            int order;
+            if(see > 0)
+                order = (2 * GOOD_CAPTURE) | (mvvLva(move) << 8);
+            else if(see == 0)
+                order = GOOD_CAPTURE;
+            else
+                order = (see + SEE_OFFSET) << 8;
+            // The lowest bits keep the generation order among equal moves
+            scoreStack[i] = order | (255 - (i-first));
         }
-        return score;
     }
 
-    
-
     /**
-     * Performs a MTD(f) search on the root node and returns the score
+     * Scores the moves of the main search that are neither captures nor
+     * promotions: castles first, then the other moves.
      *
-     * @param f         the 'first guess' as to what the score might be
-     * @param depth     the depth to which to search
-     * @param pv        the principal variation of the node
-     * @return          the result of this search in centipawns
-     * @throws InterruptedException if search is interrupted by the user or timeout occurs
+     * @param first         the index in <code>moveStack</code> of the first move
+     * @param last          the index in <code>moveStack</code> after the last move
      */
-    private int MTD(int f, int depth, PrincipalVariation pv) throws InterruptedException
+    private void scoreQuiets(int first, int last)
     {
-        int g = f;
-        int uppperBound =  Eval.checkmateThreshold;
-        int lowerBound = -Eval.checkmateThreshold;
-        int beta = g;
-        while(lowerBound < uppperBound)
+        for(int i=first; i<last; i++)
         {
-            if(g == lowerBound)
-                beta = g+1;
-            else
-                beta = g;
-            g = search(beta-1,beta,depth, pv);
-            if(g < beta)
-                uppperBound = g;
-            else
-                lowerBound = g;
+            int move = moveStack[i];
+            int order = Move.isCastle(move) ? 1 << 8 : 0;
+            // The lowest bits keep the generation order among equal moves
+            scoreStack[i] = order | (255 - (i-first));
         }
-        return g;
     }
 
     /**
@@ -571,6 +976,25 @@ public class Search extends Thread
         return this.bestMoveSoFar;
     }
 
+    /**
+     * The time it took to find the best move searched so far. The move has
+     * been the best of every iteration completed since then.
+     * @return      the time in milliseconds since the search started
+     */
+    public long getBestMoveTime()
+    {
+        return this.bestMoveTime;
+    }
+
+    /**
+     * The number of nodes searched so far
+     * @return      the number of nodes
+     */
+    public int getNodeCount()
+    {
+        return this.nodeCount;
+    }
+
     /**
      * The score of the best move searched so far
      * @return      the score for the best move found yet
@@ -580,6 +1004,22 @@ public class Search extends Thread
         return this.bestScoreSoFar;
     }
 
+    /**
+     * @return Whether the search is a helper of the main search
+     */
+    public boolean isHelper() {
+        return id > 0;
+    }
+
+    /**
+     * Sets whether the search should tell the AI to move when it completes
+     * normally. Must be called before the search is started.
+     * @param moveWhenDone whether to call <code>AI.moveNow()</code> at the end
+     */
+    void setMoveWhenDone(boolean moveWhenDone) {
+        this.moveWhenDone = moveWhenDone;
+    }
+
     /**
      * @return Whether the search is a ponde
      */
@@ -636,32 +1076,3 @@ public class Search extends Thread
         return true;
     }
 }
-
-/**
- * Collecting the Principal Variation during the search allows us to return
- * the entire PV-string without any abrubpt cuts due to hashtable overwrites. *
- * The overhead in passing these objects during searches and copying entire PVs
- * when alpha is raised is minimal compared to the overall search.
- */
-class PrincipalVariation
-{
-    /** The 16-bit hash of the move that seems best to make */
-    short move;
-    /** A reference to the PV after the above move is played */
-    PrincipalVariation subPV;
-
-    /** Default constructor */
-    PrincipalVariation(){}
-
-    /**
-     * Copies the entire Principal Variation (down to the depths). Quite a bit
-     * of memory allocation is required here.
-     * @param pv    the principal variation to copy
-     */
-    PrincipalVariation(PrincipalVariation pv)
-    {
-        this.move = pv.move; // Copy move hash by value
-        if(pv.subPV != null) // Copy sub-pv down to the tips
-            this.subPV = new PrincipalVariation(pv.subPV);
-    }
-}
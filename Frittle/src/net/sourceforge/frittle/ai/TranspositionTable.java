@@ -18,44 +18,215 @@ along with this program.  If not, see <http://www.gnu.org/licenses/>.
 
 package net.sourceforge.frittle.ai;
 
-import net.sourceforge.frittle.GameState;
-import net.sourceforge.frittle.Move;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import net.sourceforge.frittle.Zobrist;
 
 /**
  * A Transposition Table is a hashtable of previously evaluated positions
  * and information about their evaluation.
+ *
+ * Every entry is packed into a single <code>long</code> of data, and the
+ * hash of the state is stored XORed with that data. Several search threads
+ * may read and write the same table without locking: an entry that was
+ * torn by concurrent writes no longer verifies against its hash, so it is
+ * simply seen as missing instead of mixing the fields of two positions.
+ *
+ * The data of an entry is laid out as follows:
+ * <pre>
+ * bits  0-15   best move hash (0 if none)
+ * bits 16-31   score (signed)
+ * bits 32-39   depth (signed)
+ * bits 40-47   flag (never 0 for a stored entry)
+ * bits 48-55   generation
+ * </pre>
+ *
+ * The table lives outside of the Java heap, in a direct buffer whose size
+ * is a power of two megabytes, so that the garbage collector never has to
+ * scan it. Each slot takes two <code>long</code>s: the key followed by the
+ * data.
+ *
+ * Entries are grouped in buckets of <code>BUCKET_SIZE</code> consecutive
+ * slots (a bucket fills one 64-byte cache line). A state
+ * may be stored in any slot of its bucket, and when the bucket is full the
+ * entry that is the least worth keeping is replaced: entries of previous
+ * searches go first, then the shallowest ones. The generation is advanced
+ * by <code>newSearch()</code> every time the AI starts thinking on a move.
+ *
+ * The table can be saved to a file and loaded back into memory by another
+ * process, which then starts with the knowledge of the previous one. The
+ * file starts with a header of <code>HEADER_BYTES</code> holding a magic
+ * number, the file format version, the checksum of the Zobrist keys, the
+ * size in megabytes and the generation, followed by the slots exactly as
+ * they are laid out in memory (in the byte order of the platform).
+ *
+ * The statistics are not synchronized, so with several search threads
+ * they are only approximate.
  */
 public class TranspositionTable
 {
-    /** The hash values of the game state to which the entry corresponds */
-    private long[] stateHash;
-    /** The evaluation score for the state to which it corresponds */
-    private short[] score;
-    /** The depth to which the state to which the entry corresponds has been searched */
-    private byte[] depth;
-    /** A flag indicating whether the score is exact, a bound or invalid */
-    private byte[] flag;
-    /** A hash value for the best move. Short.MAX_VALUE is used for null values */
-    private short[] bestMoveHash;
+    /** The value returned by <code>probe()</code> when no entry matches */
+    public static final long NO_ENTRY = 0;
+    /** The number of entries in each bucket */
+    public static final int BUCKET_SIZE = 4;
+    /** The size of the table when none is given, in megabytes */
+    public static final int DEFAULT_MEGABYTES = 64;
+    /** The largest size of the table, in megabytes (a direct buffer holds less than 2GB) */
+    public static final int MAX_MEGABYTES = 1024;
+    /** The number of bytes taken by each slot */
+    private static final int SLOT_BYTES = 16;
+    /** How many plies of depth one generation of age is worth when replacing */
+    private static final int AGE_WEIGHT = 8;
+    /** The number of bytes before the slots in a saved table (one cache line) */
+    private static final int HEADER_BYTES = 64;
+    /** The first bytes of a saved table ("FRTT") */
+    private static final int MAGIC = 0x46525454;
+    /** The version of the format of saved tables */
+    private static final int VERSION = 1;
+
+    /**
+     * The slots of the table. The <code>long</code> at <code>2*i</code> is
+     * the hash value of the game state of slot <i>i</i> XORed with its data,
+     * and the one at <code>2*i+1</code> is the packed score, depth, flag,
+     * best move and generation.
+     */
+    private LongBuffer table;
 
     /** The number of items in the hashtable  */
     private int capacity;
+    /** The size of the hashtable in megabytes */
+    private int megabytes;
+    /** The mask that maps a hash to a bucket */
+    private int mask;
+    /** The generation of the current search, stored with every new entry */
+    private int generation;
+
+    /** Counts the lookups since the last reset */
+    private long probes;
+    /** Counts the lookups that found their entry since the last reset */
+    private long hits;
+    /** Counts the entries stored since the last reset */
+    private long stores;
+    /** Counts the stores that evicted an entry of another state since the last reset */
+    private long overwrites;
 
 	
 	/**
-	 * Construct a new TranspositionTable of the given capacity.
+	 * Construct a new TranspositionTable of the given size.
 	 *
-	 * @param	capacity	the size of the transposition table
+	 * @param	megabytes	the memory to use for the transposition table (rounded
+	 *                      down to a power of two, between 1 and <code>MAX_MEGABYTES</code>)
 	 */
-	public TranspositionTable(int capacity)
+	public TranspositionTable(int megabytes)
 	{
-        this.capacity = capacity;
-        this.stateHash = new long[capacity];
-        this.score = new short[capacity];
-        this.depth = new byte[capacity];
-        this.flag = new byte[capacity];
-        this.bestMoveHash = new short[capacity];
+        this.megabytes = roundMegabytes(megabytes);
+        this.capacity = this.megabytes * (1024 * 1024 / SLOT_BYTES);
+        this.mask = capacity / BUCKET_SIZE - 1;
+        this.table = ByteBuffer.allocateDirect(capacity * SLOT_BYTES)
+                .order(ByteOrder.nativeOrder()).asLongBuffer();
 	}
+
+    /**
+     * The size a table actually takes when it is asked for a given size
+     *
+     * @param   megabytes   the memory to use for the transposition table
+     * @return  the size rounded down to a power of two, between 1 and
+     *          <code>MAX_MEGABYTES</code>
+     */
+    public static int roundMegabytes(int megabytes)
+    {
+        return Integer.highestOneBit(Math.min(Math.max(1, megabytes), MAX_MEGABYTES));
+    }
+
+    /**
+     * Reads a table saved by <code>save()</code>. The file is mapped
+     * read-only and its slots are copied into a new table, so the file only
+     * needs to be readable and the entries stored afterwards are never
+     * written back to it.
+     *
+     * @param   file    the file to load
+     * @return  the table
+     * @throws IOException  if the file does not exist or cannot be read, or
+     *                      was not saved by a compatible table hashed with
+     *                      the same keys
+     */
+    public static TranspositionTable load(File file) throws IOException
+    {
+        if(!file.isFile())
+            throw new IOException(file + " does not exist");
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = raf.getChannel();
+            if(channel.size() < HEADER_BYTES)
+                throw new IOException(file + " is not a saved hashtable");
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.nativeOrder());
+            if(buffer.getInt() != MAGIC)
+                throw new IOException(file + " is not a saved hashtable");
+            if(buffer.getInt() != VERSION)
+                throw new IOException(file + " was saved in another version of the format");
+            if(buffer.getLong() != Zobrist.checksum())
+                throw new IOException(file + " was saved with other Zobrist keys");
+            int megabytes = buffer.getInt();
+            int generation = buffer.getInt();
+            if(Integer.bitCount(megabytes) != 1 || megabytes > MAX_MEGABYTES
+                    || channel.size() != HEADER_BYTES + (long)megabytes * 1024 * 1024)
+                throw new IOException(file + " has an invalid size");
+            buffer.position(HEADER_BYTES);
+            TranspositionTable loaded = new TranspositionTable(megabytes);
+            loaded.table.put(buffer.slice().order(ByteOrder.nativeOrder()).asLongBuffer());
+            loaded.table.clear();
+            loaded.generation = generation;
+            return loaded;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    /**
+     * Saves the table to a file that can be loaded by <code>load()</code>.
+     * The table may be in use by a search while it is saved: the entries
+     * that are written at the same time are torn, and will simply not be
+     * found when the table is loaded.
+     *
+     * @param   file    the file to write (it is replaced if it exists)
+     * @throws IOException  if the file cannot be written
+     */
+    public void save(File file) throws IOException
+    {
+        long size = HEADER_BYTES + (long)capacity * SLOT_BYTES;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try
+        {
+            raf.setLength(size);
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.nativeOrder());
+            buffer.putInt(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putLong(Zobrist.checksum());
+            buffer.putInt(megabytes);
+            buffer.putInt(generation);
+            buffer.position(HEADER_BYTES);
+            LongBuffer slots = table.duplicate();
+            slots.clear();
+            buffer.slice().order(ByteOrder.nativeOrder()).asLongBuffer().put(slots);
+            buffer.force();
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
 	
 	/**
 	 * Store an evaluated GameState into the transposition table.
@@ -63,65 +234,243 @@ public class TranspositionTable
 	 * @param	hash            the 64-bit hash of the game state to store
      * @param   depth           the depth to which this state has been search
      * @param   score           the score of the evaluation / search
-     * @param   flag            the type of evaluation
+     * @param   flag            the type of evaluation (must not be 0)
      * @param   bestMoveHash    the 16-bit hash of the best move from this state
 	 */
 	public void store(long stateHash, int depth, int score, int flag, short bestMoveHash)
 	{
-        int index = index(stateHash);
-        this.stateHash[index] = stateHash;
-        this.depth[index] = (byte)depth;
-        this.score[index] = (short)score;
-        this.flag[index] = (byte)flag;
-        this.bestMoveHash[index] = bestMoveHash;
+        long entry = (bestMoveHash & 0xFFFFL) | ((score & 0xFFFFL) << 16)
+                | ((depth & 0xFFL) << 32) | ((flag & 0xFFL) << 40)
+                | ((long)generation << 48);
+        put(stateHash, entry);
 	}
 
     /**
-     * Whether or not the entry for the given state exists in the hashtable
-     * @param hash  the 64-bit hash of the state
-     * @return  <code>true</code> if a valid entry exists in the hashtable, <code>false</code> if not
+     * Stores a packed entry into the slot of the bucket that is the least
+     * worth keeping.
+     *
+     * @param   stateHash   the 64-bit hash of the game state to store
+     * @param   entry       the packed entry
      */
-    public boolean exists(long hash)
+    private void put(long stateHash, long entry)
     {
-        return (stateHash[index(hash)]==hash);
+        int first = index(stateHash);
+        int replace = first;
+        int replaceWorth = Integer.MAX_VALUE;
+        long old = NO_ENTRY;
+        for(int i=first; i<first+BUCKET_SIZE; i++)
+        {
+            long slot = table.get(2*i+1);
+            if((table.get(2*i) ^ slot) == stateHash && slot != NO_ENTRY)
+            {
+                // Same state, so update this slot. Keep the old best move
+                // if no new one was found.
+                replace = i;
+                old = slot;
+                if(bestMoveHash(entry) == 0)
+                    entry |= slot & 0xFFFFL;
+                break;
+            }
+            // Empty slots are taken first, then the oldest and shallowest
+            int worth = (slot == NO_ENTRY) ? Integer.MIN_VALUE
+                    : depth(slot) - AGE_WEIGHT * ((generation - generation(slot)) & 0xFF);
+            if(worth < replaceWorth)
+            {
+                replace = i;
+                replaceWorth = worth;
+                old = slot;
+            }
+        }
+        stores++;
+        if(old != NO_ENTRY && (table.get(2*replace) ^ old) != stateHash)
+            overwrites++;
+        table.put(2*replace+1, entry);
+        table.put(2*replace, stateHash ^ entry);
     }
 
     /**
-     * Returns the score for the given state
+     * Creates a table of another size holding the entries of this one. When
+     * the new table is smaller, the entries that are the least worth keeping
+     * are dropped.
+     *
+     * @param   megabytes   the memory to use for the new table (rounded
+     *                      down to a power of two)
+     * @return  the new table
+     */
+    public TranspositionTable resize(int megabytes)
+    {
+        TranspositionTable resized = new TranspositionTable(megabytes);
+        resized.generation = generation;
+        for(int i=0; i<capacity; i++)
+        {
+            long entry = table.get(2*i+1);
+            if(entry != NO_ENTRY)
+                resized.put(table.get(2*i) ^ entry, entry);
+        }
+        resized.resetStats();
+        return resized;
+    }
+
+    /**
+     * Looks up the entry for the given state. All the fields of the entry
+     * are returned at once, and should be read with the static accessors
+     * of this class.
+     *
      * @param hash  the 64-bit hash of the state
+     * @return  the packed entry, or <code>NO_ENTRY</code> if no valid entry
+     *          exists in the hashtable
+     */
+    public long probe(long hash)
+    {
+        probes++;
+        int first = index(hash);
+        for(int i=first; i<first+BUCKET_SIZE; i++)
+        {
+            long entry = table.get(2*i+1);
+            if((table.get(2*i) ^ entry) == hash && entry != NO_ENTRY)
+            {
+                hits++;
+                return entry;
+            }
+        }
+        return NO_ENTRY;
+    }
+
+    /**
+     * Starts a new generation of entries. Entries stored before this call
+     * are preferred for replacement over the ones stored after it.
+     */
+    public void newSearch()
+    {
+        generation = (generation + 1) & 0xFF;
+    }
+
+    /**
+     * Returns the score of a packed entry
+     * @param entry the entry returned by <code>probe()</code>
      * @return  the score in centipawns
      */
-    public short getScore(long hash) {
-        return score[index(hash)];
+    public static int score(long entry)
+    {
+        return (short)(entry >>> 16);
     }
 
     /**
-     * Returns the depth to which the given state was searched
-     * @param hash  the 64-bit hash of the state
+     * Returns the depth to which the state of a packed entry was searched
+     * @param entry the entry returned by <code>probe()</code>
      * @return the depth in plies
      */
-    public byte getDepth(long hash) {
-        return depth[index(hash)];
+    public static int depth(long entry)
+    {
+        return (byte)(entry >>> 32);
     }
 
     /**
-     * Returns the flag of the node type
-     * @param hash  the 64-bit hash of the state
+     * Returns the flag of the node type of a packed entry
+     * @param entry the entry returned by <code>probe()</code>
      * @return a flag for whether the node was searched exactly or a bound is stored
      */
-    public byte getFlag(long hash) {
-        return flag[index(hash)];
+    public static int flag(long entry)
+    {
+        return (int)(entry >>> 40) & 0xFF;
     }
 
     /**
-     * Returns the hash of the best move from the given state
-     * @param hash  the 64-bit hash of the state
+     * Returns the hash of the best move of a packed entry
+     * @param entry the entry returned by <code>probe()</code>
      * @return  the 16-bit hash of the best move
      */
-    public short getBestMoveHash(long hash) {
-        return bestMoveHash[index(hash)];
+    public static short bestMoveHash(long entry)
+    {
+        return (short)entry;
+    }
+
+    /**
+     * Returns the generation of the search that stored a packed entry
+     * @param entry the entry returned by <code>probe()</code>
+     * @return  the generation [0-255]
+     */
+    private static int generation(long entry)
+    {
+        return (int)(entry >>> 48) & 0xFF;
     }
 	
+    /**
+     * Removes all the entries from the table
+     */
+    public void clear()
+    {
+        for(int i=0; i<2*capacity; i++)
+            table.put(i, 0);
+    }
+
+    /**
+     * The number of lookups since the last reset
+     * @return  the number of probes
+     */
+    public long getProbes()
+    {
+        return probes;
+    }
+
+    /**
+     * The number of lookups that found their entry since the last reset
+     * @return  the number of hits
+     */
+    public long getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * The number of entries stored since the last reset
+     * @return  the number of stores
+     */
+    public long getStores()
+    {
+        return stores;
+    }
+
+    /**
+     * The number of stores that replaced the entry of another state since
+     * the last reset
+     * @return  the number of overwrites
+     */
+    public long getOverwrites()
+    {
+        return overwrites;
+    }
+
+    /**
+     * Resets the lookup and store counters (but keeps the entries)
+     */
+    public void resetStats()
+    {
+        probes = 0;
+        hits = 0;
+        stores = 0;
+        overwrites = 0;
+    }
+
+    /**
+     * Estimates how full the table is with entries of the current search,
+     * by sampling the first thousand slots (like the UCI hashfull info).
+     *
+     * @return  the number of used slots per thousand
+     */
+    public int hashfull()
+    {
+        int sample = Math.min(1000, capacity);
+        int used = 0;
+        for(int i=0; i<sample; i++)
+        {
+            long entry = table.get(2*i+1);
+            if(entry != NO_ENTRY && generation(entry) == generation)
+                used++;
+        }
+        return used * 1000 / sample;
+    }
+
 	/**
 	 * Get the number of elements in the transposition table.
 	 *
@@ -133,15 +482,24 @@ public class TranspositionTable
 	}
 
     /**
-     * Convert hash code into appropriate index for table by using the modulo function.
+     * Get the memory used by the transposition table.
+     *
+     * @return  the size of the table in megabytes
+     */
+    public int getMegabytes()
+    {
+        return this.megabytes;
+    }
+
+    /**
+     * Convert hash code into the index of the first slot of its bucket by
+     * masking its lowest bits.
      * @param hash      the hash code of the game state
-     * @return          the index in the table (array)
+     * @return          the index of the slot in the table
      */
     private int index(long hash)
     {
-        return (int)(Math.abs(hash) % this.capacity);
+        return ((int)hash & mask) * BUCKET_SIZE;
     }
 		
 }
-
-
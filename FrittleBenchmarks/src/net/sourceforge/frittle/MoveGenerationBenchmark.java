@@ -0,0 +1,117 @@
+/*
+Frittle - Chess Engine for WinBoard/XBoard [http://frittle.sourceforge.net]
+Copyright (C) 2009 Rohan Padhye <verminox@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package net.sourceforge.frittle;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Benchmarks of move generation, making and unmaking moves and hashing on
+ * each position of the suite.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MoveGenerationBenchmark
+{
+    /** The buffer the packed moves are generated into */
+    private int[] moves = new int[GameState.MAX_MOVES];
+
+    @Benchmark
+    public MoveList generateMoves(Positions p)
+    {
+        return p.state.generateMoves();
+    }
+
+    @Benchmark
+    public MoveList generateCaptures(Positions p)
+    {
+        return p.state.generateCaptures();
+    }
+
+    @Benchmark
+    public int generatePseudoLegalMoves(Positions p)
+    {
+        return p.state.generatePseudoLegalMoves(moves, 0);
+    }
+
+    @Benchmark
+    public int generatePseudoLegalCaptures(Positions p)
+    {
+        return p.state.generatePseudoLegalCaptures(moves, 0);
+    }
+
+    /**
+     * Finds the same moves as <code>generatePseudoLegalCaptures()</code> by
+     * generating every pseudo-legal move and keeping the captures and
+     * promotions, which is how the captures used to be generated.
+     */
+    @Benchmark
+    public int filterPseudoLegalCaptures(Positions p)
+    {
+        int count = p.state.generatePseudoLegalMoves(moves, 0);
+        int n = 0;
+        for(int i=0; i<count; i++)
+        {
+            if(Move.isCapture(moves[i]) || Move.isPromotion(moves[i]))
+                moves[n++] = moves[i];
+        }
+        return n;
+    }
+
+    /**
+     * Makes and unmakes every legal move of the position once.
+     */
+    @Benchmark
+    public void doUndoMoves(Positions p, Blackhole bh)
+    {
+        GameState state = p.state;
+        int count = state.generatePseudoLegalMoves(moves, 0);
+        for(int i=0; i<count; i++)
+        {
+            int move = moves[i];
+            if(!state.isLegal(move))
+                continue;
+            state.doMove(move);
+            bh.consume(state.hash());
+            state.undoMove(move);
+        }
+    }
+
+    /**
+     * Computes the hash of the position from scratch.
+     */
+    @Benchmark
+    public long hash(Positions p)
+    {
+        return Zobrist.hash(p.state);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+Frittle - Chess Engine for WinBoard/XBoard [http://frittle.sourceforge.net]
+Copyright (C) 2009 Rohan Padhye <verminox@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package net.sourceforge.frittle;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The standard suite of positions that every benchmark is run over. A
+ * benchmark method that takes this state as a parameter is run once for
+ * each of the positions.
+ */
+@State(Scope.Thread)
+public class Positions
+{
+    /** The name of the position to set up */
+    @Param({"start", "kiwipete", "middlegame", "promotions", "endgame", "pawns"})
+    public String position;
+
+    /** The position, set up before each trial */
+    public GameState state;
+
+    /**
+     * Gets the FEN of a position of the suite.
+     *
+     * @param   name    the name of the position
+     * @return  the position in FEN
+     */
+    public static String fen(String name)
+    {
+        if(name.equals("start"))
+            return "rnbqkbnr/pppppppp/8/8/8/8/PPPPPPPP/RNBQKBNR w KQkq -";
+        else if(name.equals("kiwipete"))
+            return "r3k2r/p1ppqpb1/bn2pnp1/3PN3/1p2P3/2N2Q1p/PPPBBPPP/R3K2R w KQkq -";
+        else if(name.equals("middlegame"))
+            return "r4rk1/1pp1qppp/p1np1n2/2b1p1B1/2B1P1b1/P1NP1N2/1PP1QPPP/R4RK1 w - -";
+        else if(name.equals("promotions"))
+            return "r3k2r/Pppp1ppp/1b3nbN/nP6/BBP1P3/q4N2/Pp1P2PP/R2Q1RK1 w kq -";
+        else if(name.equals("endgame"))
+            return "8/2p5/3p4/KP5r/1R3p1k/8/4P1P1/8 w - -";
+        else if(name.equals("pawns"))
+            return "8/8/1p1k4/p1p2p2/P1P2P2/1P1K4/8/8 w - -";
+        throw new IllegalArgumentException("Unknown position " + name);
+    }
+
+    @Setup
+    public void setUp() throws InvalidFENException
+    {
+        state = new GameState(fen(position));
+    }
+}
@@ -0,0 +1,65 @@
+/*
+Frittle - Chess Engine for WinBoard/XBoard [http://frittle.sourceforge.net]
+Copyright (C) 2009 Rohan Padhye <verminox@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package net.sourceforge.frittle.ai;
+
+import java.util.concurrent.TimeUnit;
+
+import net.sourceforge.frittle.Positions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the static evaluation on each position of the suite.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvalBenchmark
+{
+    /** A pawn hash table, which always hits after the first call */
+    private PawnHashTable pawnTable = new PawnHashTable(16);
+
+    /**
+     * Evaluates the position analyzing the pawn structure every time.
+     */
+    @Benchmark
+    public int evaluate(Positions p)
+    {
+        return Eval.evaluate(p.state);
+    }
+
+    /**
+     * Evaluates the position with the pawn structure score from the table.
+     */
+    @Benchmark
+    public int evaluateWithPawnHash(Positions p)
+    {
+        return Eval.evaluate(p.state, pawnTable);
+    }
+}
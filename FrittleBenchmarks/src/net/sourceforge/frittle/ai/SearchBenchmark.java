@@ -0,0 +1,77 @@
+/*
+Frittle - Chess Engine for WinBoard/XBoard [http://frittle.sourceforge.net]
+Copyright (C) 2009 Rohan Padhye <verminox@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package net.sourceforge.frittle.ai;
+
+import java.util.concurrent.TimeUnit;
+
+import br.com.vinyanalista.jchessengine.XBoard;
+import br.com.vinyanalista.jchessengine.example.Frittle;
+import net.sourceforge.frittle.Positions;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of a single-threaded search to a fixed depth on each position
+ * of the suite, starting from an empty transposition table every time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SearchBenchmark
+{
+    /** The depth of the search */
+    @Param({"5"})
+    public int depth;
+
+    private AI ai;
+
+    @Setup
+    public void setUp()
+    {
+        Frittle engine = new Frittle();
+        XBoard.setEngine(engine);
+        ai = engine.getAI();
+        ai.setCores(1);
+    }
+
+    @Setup(Level.Invocation)
+    public void clearHashtable()
+    {
+        ai.transpositionTable.clear();
+    }
+
+    @Benchmark
+    public long search(Positions p) throws InterruptedException
+    {
+        return ai.timeToDepth(p.state, depth);
+    }
+}
@@ -0,0 +1,83 @@
+/*
+Frittle - Chess Engine for WinBoard/XBoard [http://frittle.sourceforge.net]
+Copyright (C) 2009 Rohan Padhye <verminox@gmail.com>
+
+This program is free software: you can redistribute it and/or modify
+it under the terms of the GNU General Public License as published by
+the Free Software Foundation, either version 3 of the License, or
+(at your option) any later version.
+
+This program is distributed in the hope that it will be useful,
+but WITHOUT ANY WARRANTY; without even the implied warranty of
+MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+GNU General Public License for more details.
+
+You should have received a copy of the GNU General Public License
+along with this program.  If not, see <http://www.gnu.org/licenses/>.
+*/
+package net.sourceforge.frittle.ai;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of storing and probing the transposition table with random
+ * hashes, so that nearly every access misses the processor caches.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TranspositionTableBenchmark
+{
+    /** The number of distinct hashes that are stored and probed */
+    private static final int HASHES = 1 << 16;
+
+    /** The size of the table in megabytes */
+    @Param({"64"})
+    public int megabytes;
+
+    private TranspositionTable table;
+    private long[] hashes;
+    private int next;
+
+    @Setup
+    public void setUp()
+    {
+        table = new TranspositionTable(megabytes);
+        hashes = new long[HASHES];
+        Random random = new Random(1);
+        for(int i=0; i<HASHES; i++)
+        {
+            hashes[i] = random.nextLong();
+            table.store(hashes[i], i & 15, i, 2, (short)i);
+        }
+    }
+
+    @Benchmark
+    public void store()
+    {
+        int i = next++ & (HASHES-1);
+        table.store(hashes[i], i & 15, i, 2, (short)i);
+    }
+
+    @Benchmark
+    public long probe()
+    {
+        return table.probe(hashes[next++ & (HASHES-1)]);
+    }
+}
@@ -14,6 +14,15 @@ public interface JChessEngine {
 	 */
 	public void black();
 
+	/**
+	 * <b>bench [DEPTH]</b>
+	 * 
+	 * <p>Searches a fixed set of positions to depth DEPTH (or to a default
+	 * depth if DEPTH is 0) and prints the number of nodes searched, the time
+	 * and the speed. This is not a standard command.</p>
+	 */
+	public void bench(int depth);
+
 	/**
 	 * <b>computer</b>
 	 * 
@@ -24,6 +33,14 @@ public interface JChessEngine {
 
 	public void debug(String message);
 
+	/**
+	 * <b>divide DEPTH</b>
+	 * 
+	 * <p>Runs a performance test to depth DEPTH, printing the number of leaf
+	 * nodes below each legal move of the current position</p>
+	 */
+	public void divide(int depth);
+
 	/**
 	 * <b>force</b>
 	 * 
@@ -148,8 +165,27 @@ public interface JChessEngine {
 	
 	public void setBoard(String fen);
 
+	/**
+	 * <b>cores N</b>
+	 * 
+	 * <p>The engine should limit its use of CPU cores to N, i.e. it should
+	 * not start more search threads than N. This command is only sent to
+	 * engines that announced feature smp=1.</p>
+	 */
+	public void setCores(int cores);
+
 	public void setDebug(boolean debug);
 
+	/**
+	 * <b>memory N</b>
+	 * 
+	 * <p>This command informs the engine on how much memory it is allowed to
+	 * use maximally, in MegaBytes. On receipt of this command, the engine
+	 * should adapt the size of its hash tables accordingly. This command is
+	 * only sent to engines that announced feature memory=1.</p>
+	 */
+	public void setMemory(int megabytes);
+
 	/**
 	 * <b>otim N</b>
 	 * 
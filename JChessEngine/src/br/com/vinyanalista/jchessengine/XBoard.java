@@ -80,13 +80,22 @@ public class XBoard {
 		String command = st.nextToken();
 		if (command.equals("?")) {
 			engine.moveNow();
+		} else if (command.equals("bench")) {
+			int depth = st.hasMoreTokens() ? Integer.parseInt(st.nextToken()) : 0;
+			engine.bench(depth);
 		} else if (command.equals("black")) {
 			engine.black();
 		} else if (command.equals("computer")) {
 			engine.computer();
+		} else if (command.equals("cores")) {
+			int cores = Integer.parseInt(st.nextToken());
+			engine.setCores(cores);
 		} else if (command.equals("debug")) {
 			boolean on = st.nextToken().equals("on");
 			engine.setDebug(on);
+		} else if (command.equals("divide")) {
+			int depth = Integer.parseInt(input.substring(7)); // After "divide "
+			engine.divide(depth);
 		} else if (command.equals("easy")) {
 			engine.setPondering(false);
 		} else if (command.equals("force")) {
@@ -114,6 +123,9 @@ public class XBoard {
 				} catch (NumberFormatException e) {
                 }
 			}
+		} else if (command.equals("memory")) {
+			int megabytes = Integer.parseInt(st.nextToken());
+			engine.setMemory(megabytes);
 		} else if (command.equals("new")) {
 			engine.newGame();
 		} else if (command.equals("nopost")) {